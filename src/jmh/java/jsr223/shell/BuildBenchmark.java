@@ -0,0 +1,49 @@
+package jsr223.shell;
+
+import jsr223.shell.bash.Bash;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flattens bindings holding a map, a list and an array of {@code size} elements into variables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BuildBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private ShellHandler handler;
+
+    private Map<String, Object> bindings;
+
+    @Setup
+    public void setup() {
+        handler = new ShellHandler(new Bash());
+        Map<String, String> map = new HashMap<String, String>();
+        List<String> list = new ArrayList<String>();
+        String[] array = new String[size];
+        for (int i = 0; i < size; i++) {
+            map.put("key" + i, "value" + i);
+            list.add("element" + i);
+            array[i] = "item" + i;
+        }
+        bindings = new HashMap<String, Object>();
+        bindings.put("scalar", "value");
+        bindings.put("map", map);
+        bindings.put("list", list);
+        bindings.put("array", array);
+    }
+
+    @Benchmark
+    public Map<String, String> build() {
+        return handler.build(bindings);
+    }
+}
@@ -0,0 +1,93 @@
+package jsr223.shell;
+
+import jsr223.shell.bash.Bash;
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptContext;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test starting {@code concurrency} evaluations of a short script at once, each blocking a
+ * thread of its own, and waiting for all of them. Compares platform threads with virtual threads,
+ * which need Java 21: the peak number of platform threads and the heap used are reported as
+ * secondary results, use {@code -prof gc} for the allocation rate.
+ * <p>
+ * Raise the limit of processes per user before running thousands of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ConcurrencyBenchmark {
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"100", "1000"})
+    public int concurrency;
+
+    private ShellEngine engine;
+
+    @Setup
+    public void setup() {
+        if (ShellThreads.VIRTUAL.equals(threads) && !ShellThreads.isVirtualSupported()) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later");
+        }
+        engine = new ShellEngine(new Bash());
+        engine.getContext().setWriter(new StringWriter());
+        engine.getContext().setErrorWriter(new StringWriter());
+        engine.getContext().setAttribute(ShellHandler.KEY_THREADS, threads, ScriptContext.ENGINE_SCOPE);
+    }
+
+    @Benchmark
+    public int evalAll(Resources resources) throws Exception {
+        List<ShellFuture> futures = new ArrayList<ShellFuture>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            futures.add(engine.evalAsync("sleep 0.1; echo done"));
+        }
+        resources.sample();
+        int failed = 0;
+        for (ShellFuture future : futures) {
+            CommandResult commandResult = future.get();
+            failed += commandResult.getExitValue() == 0 ? 0 : 1;
+            commandResult.dispose();
+        }
+        resources.sample();
+        return failed;
+    }
+
+    /**
+     * Peak platform threads and heap used in megabytes during an iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Resources {
+
+        private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+        private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+        public long peakThreads;
+
+        public long heapUsedMB;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            threadBean.resetPeakThreadCount();
+            peakThreads = 0;
+            heapUsedMB = 0;
+        }
+
+        void sample() {
+            peakThreads = Math.max(peakThreads, threadBean.getPeakThreadCount());
+            heapUsedMB = Math.max(heapUsedMB, memoryBean.getHeapMemoryUsage().getUsed() >> 20);
+        }
+    }
+}
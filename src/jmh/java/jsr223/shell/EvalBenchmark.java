@@ -0,0 +1,53 @@
+package jsr223.shell;
+
+import jsr223.shell.bash.Bash;
+import org.openjdk.jmh.annotations.*;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates a trivial bash script passed with {@code -c}, written to a temporary file or compiled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EvalBenchmark {
+
+    @Param({"command", "file", "compiled"})
+    public String path;
+
+    private ShellEngine engine;
+
+    private ShellCompiledScript compiled;
+
+    private StringWriter output;
+
+    @Setup
+    public void setup() throws ScriptException {
+        engine = new ShellEngine(new Bash());
+        output = new StringWriter();
+        engine.getContext().setWriter(output);
+        engine.getContext().setErrorWriter(output);
+        if ("file".equals(path)) {
+            engine.getContext().setAttribute(ShellHandler.SHELL + "language", ".sh", ScriptContext.ENGINE_SCOPE);
+        }
+        compiled = engine.compile("echo $HOME");
+    }
+
+    @TearDown
+    public void tearDown() {
+        compiled.release();
+    }
+
+    @Benchmark
+    public Object eval() throws ScriptException {
+        output.getBuffer().setLength(0);
+        if ("compiled".equals(path)) {
+            return compiled.eval();
+        }
+        return engine.eval("echo $HOME");
+    }
+}
@@ -0,0 +1,74 @@
+package jsr223.shell;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes 1 MB of output made of lines of {@code lineLength} bytes, ASCII or with two-byte
+ * UTF-8 characters, in 8 KB writes like the pump threads do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MyLogOutputStreamBenchmark {
+
+    private static final int MB = 1024 * 1024;
+
+    @Param({"16", "80", "1024", "16384"})
+    public int lineLength;
+
+    @Param({"UTF-8", "ISO-8859-1", "GBK"})
+    public String charsetName;
+
+    @Param({"ascii", "utf8"})
+    public String text;
+
+    private byte[] output;
+
+    @Setup
+    public void setup() {
+        output = new byte[MB];
+        boolean ascii = "ascii".equals(text);
+        for (int i = 0; i < output.length; i++) {
+            if (i % (lineLength + 1) == lineLength) {
+                output[i] = '\n';
+            } else if (ascii) {
+                output[i] = (byte) ('a' + i % 26);
+            } else {
+                // é
+                output[i] = (byte) (i % 2 == 0 ? 0xc3 : 0xa9);
+            }
+        }
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        CountingSink sink = new CountingSink();
+        MyLogOutputStream os = new MyLogOutputStream(sink, charsetName);
+        for (int off = 0; off < output.length; off += 8192) {
+            os.write(output, off, Math.min(8192, output.length - off));
+        }
+        os.close();
+        return sink.count;
+    }
+
+    private static class CountingSink implements LineSink {
+        private long count;
+
+        @Override
+        public void processLine(char[] chars, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void processLinePart(char[] chars, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package jsr223.shell.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a script of {@code size} chars with {@link IOUtil#toString} and copies output of the
+ * same size with {@link IOUtil#pipe}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IOUtilBenchmark {
+
+    @Param({"1024", "1048576"})
+    public int size;
+
+    private String text;
+
+    private CountingWriter writer;
+
+    @Setup
+    public void setup() {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'a');
+        for (int i = 80; i < size; i += 81) {
+            chars[i] = '\n';
+        }
+        text = new String(chars);
+        writer = new CountingWriter();
+    }
+
+    @Benchmark
+    public String toStringFromReader() {
+        return IOUtil.toString(new StringReader(text));
+    }
+
+    @Benchmark
+    public long pipe() throws IOException {
+        IOUtil.pipe(text, writer);
+        return writer.count;
+    }
+
+    private static class CountingWriter extends Writer {
+        private long count;
+
+        @Override
+        public void write(char[] chars, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
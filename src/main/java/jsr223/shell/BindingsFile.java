@@ -0,0 +1,96 @@
+package jsr223.shell;
+
+import jsr223.shell.util.IOUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Bindings too large for the environment of a process, handed over in a file instead. The file
+ * holds the flattened variables as a name and a value, each one followed by a NUL byte, and its
+ * path is in the {@value #VARIABLE} variable.
+ * <p>
+ * Bash scripts read a value with the {@value #HELPER} function, exported to them:
+ * {@code list_0=$(jsr223_binding list_0)}, or {@code jsr223_binding list_0 list_0} to assign it
+ * without a subshell. It returns 1 if there is no such variable. With bash 4.4 or later, the first
+ * call in a shell loads the whole file into the {@value #ARRAY} associative array, subshells inherit
+ * it: call the function once without arguments before reading many values with command
+ * substitutions. Older versions, without {@code mapfile -d}, scan the file for every value.
+ */
+public final class BindingsFile {
+
+    public static final String VARIABLE = "JSR223_BINDINGS";
+
+    public static final String HELPER = "jsr223_binding";
+
+    /** the values of the variables by name, once the helper loaded them */
+    static final String ARRAY = "jsr223_bindings";
+
+    /** exports the helper to bash, see the "Exported functions" of its manual */
+    static final String HELPER_VARIABLE = "BASH_FUNC_" + HELPER + "%%";
+
+    static final String HELPER_DEFINITION = "() { "
+            + "if ((BASH_VERSINFO[0] < 4 || BASH_VERSINFO[0] == 4 && BASH_VERSINFO[1] < 4)); then "
+            + "if [ $# -eq 0 ]; then return 0; fi; "
+            + "local jsr223_name jsr223_value; "
+            + "while IFS= read -r -d '' jsr223_name && IFS= read -r -d '' jsr223_value; do "
+            + "if [ \"$jsr223_name\" = \"$1\" ]; then "
+            + "if [ $# -gt 1 ]; then printf -v \"$2\" '%s' \"$jsr223_value\"; else printf '%s' \"$jsr223_value\"; fi; "
+            + "return 0; fi; done < \"$" + VARIABLE + "\"; return 1; fi; "
+            + "if [ \"${" + ARRAY + "_file-}\" != \"$" + VARIABLE + "\" ]; then "
+            + "local -a jsr223_fields; local jsr223_i; declare -gA " + ARRAY + "=(); "
+            + "mapfile -d '' -t jsr223_fields < \"$" + VARIABLE + "\" || return 1; "
+            + "for ((jsr223_i = 0; jsr223_i + 1 < ${#jsr223_fields[@]}; jsr223_i += 2)); do "
+            + ARRAY + "[\"${jsr223_fields[jsr223_i]}\"]=\"${jsr223_fields[jsr223_i + 1]}\"; done; "
+            + ARRAY + "_file=$" + VARIABLE + "; fi; "
+            + "if [ $# -eq 0 ]; then return 0; fi; "
+            + "if [ -z \"${" + ARRAY + "[\"$1\"]+set}\" ]; then return 1; fi; "
+            + "if [ $# -gt 1 ]; then printf -v \"$2\" '%s' \"${" + ARRAY + "[\"$1\"]}\"; "
+            + "else printf '%s' \"${" + ARRAY + "[\"$1\"]}\"; fi; }";
+
+    private BindingsFile() {
+    }
+
+    /**
+     * @return the variables written to a temporary file, to delete once the process exited.
+     */
+    static File write(Map<String, String> variables, Charset charset) throws IOException {
+        // readable by the owner only, unlike File.createTempFile
+        File file = Files.createTempFile("jsr223-bindings", ".bin").toFile();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+        boolean written = false;
+        try {
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                out.write(variable.getKey().getBytes(charset));
+                out.write(0);
+                out.write(variable.getValue().getBytes(charset));
+                out.write(0);
+            }
+            out.close();
+            written = true;
+            return file;
+        } finally {
+            if (!written) {
+                IOUtil.closeSilently(out);
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the number of characters the variables take in the environment.
+     */
+    static long size(Map<String, String> variables) {
+        long size = 0;
+        for (Map.Entry<String, String> variable : variables.entrySet()) {
+            size += variable.getKey().length() + variable.getValue().length() + 2;
+        }
+        return size;
+    }
+}
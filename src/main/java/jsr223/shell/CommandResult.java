@@ -1,5 +1,9 @@
 package jsr223.shell;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
 public class CommandResult {
     private int exitValue;
 
@@ -7,6 +11,14 @@ public class CommandResult {
 
     private String errorMessage;
 
+    private OutputCapture outCapture;
+
+    private OutputCapture errorCapture;
+
+    private ShellTimings timings;
+
+    private boolean cached;
+
     public int getExitValue() {
         return exitValue;
     }
@@ -16,16 +28,43 @@ public class CommandResult {
         return this;
     }
 
+    /**
+     * @return the captured stdout, only its head and tail when it was truncated.
+     */
     public String getOutMessage() {
+        if (outMessage == null && outCapture != null) {
+            outMessage = outCapture.toString();
+        }
         return outMessage;
     }
 
+    /**
+     * @return at most {@code limit} characters from the start of stdout, read from the head
+     * of the capture when it holds them, without building the whole message.
+     */
+    public String getOutHead(int limit) {
+        if (outCapture != null) {
+            String head = outCapture.head(limit);
+            if (head.length() >= Math.min(limit, outCapture.length())) {
+                return head;
+            }
+        }
+        String message = getOutMessage();
+        return message == null || message.length() <= limit ? message : message.substring(0, limit);
+    }
+
     public CommandResult setOutMessage(String outMessage) {
         this.outMessage = outMessage;
         return this;
     }
 
+    /**
+     * @return the captured stderr, only its head and tail when it was truncated.
+     */
     public String getErrorMessage() {
+        if (errorMessage == null && errorCapture != null) {
+            errorMessage = errorCapture.toString();
+        }
         return errorMessage;
     }
 
@@ -33,4 +72,90 @@ public class CommandResult {
         this.errorMessage = errorMessage;
         return this;
     }
+
+    public OutputCapture getOutCapture() {
+        return outCapture;
+    }
+
+    public CommandResult setOutCapture(OutputCapture outCapture) {
+        this.outCapture = outCapture;
+        this.outMessage = null;
+        return this;
+    }
+
+    public OutputCapture getErrorCapture() {
+        return errorCapture;
+    }
+
+    public CommandResult setErrorCapture(OutputCapture errorCapture) {
+        this.errorCapture = errorCapture;
+        this.errorMessage = null;
+        return this;
+    }
+
+    /**
+     * @return where the time of the evaluation went, null if it was not measured.
+     */
+    public ShellTimings getTimings() {
+        return timings;
+    }
+
+    public CommandResult setTimings(ShellTimings timings) {
+        this.timings = timings;
+        return this;
+    }
+
+    /**
+     * @return true if the script did not run for this evaluation, the result is the one of an
+     * identical evaluation, from the {@link ShellResultCache}.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    public CommandResult setCached(boolean cached) {
+        this.cached = cached;
+        return this;
+    }
+
+    /**
+     * @return a reader over the whole stdout, including what was spilled to disk, or null.
+     */
+    public Reader getOutReader() throws IOException {
+        return outCapture != null ? outCapture.openReader() : outMessage == null ? null : new StringReader(outMessage);
+    }
+
+    /**
+     * @return a reader over the whole stderr, including what was spilled to disk, or null.
+     */
+    public Reader getErrorReader() throws IOException {
+        return errorCapture != null ? errorCapture.openReader() : errorMessage == null ? null : new StringReader(errorMessage);
+    }
+
+    /**
+     * @return the number of stdout characters missing from {@link #getOutMessage()}.
+     */
+    public long getTruncatedOutLength() {
+        return outCapture == null ? 0 : outCapture.getTruncatedLength();
+    }
+
+    /**
+     * @return the number of stderr characters missing from {@link #getErrorMessage()}.
+     */
+    public long getTruncatedErrorLength() {
+        return errorCapture == null ? 0 : errorCapture.getTruncatedLength();
+    }
+
+    /**
+     * Deletes the files the output was spilled to, the readers can not be opened afterwards.
+     * Nothing else deletes them: a result with spilled output which is never disposed leaks its files.
+     */
+    public void dispose() {
+        if (outCapture != null) {
+            outCapture.dispose();
+        }
+        if (errorCapture != null) {
+            errorCapture.dispose();
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package jsr223.shell;
+
+import jsr223.shell.exec.Exec;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Engines running a script as a single command, without a shell, see {@link Exec}. There is no
+ * interpreter to probe, the versions are the one of this library.
+ */
+public class ExecEngineFactory implements ScriptEngineFactory {
+
+    private static final Exec utilShell = new Exec();
+    private static final Map<String, Object> parameters = new HashMap<String, Object>();
+
+    static {
+        String version = ExecEngineFactory.class.getPackage().getImplementationVersion();
+        parameters.put(ScriptEngine.NAME, "exec");
+        parameters.put(ScriptEngine.ENGINE, "Command executor");
+        parameters.put(ScriptEngine.ENGINE_VERSION, version == null ? "1.0" : version);
+        parameters.put(ScriptEngine.LANGUAGE, "Exec");
+        parameters.put(ScriptEngine.LANGUAGE_VERSION, "1");
+    }
+
+    @Override
+    public String getEngineName() {
+        return getParameter(ScriptEngine.NAME).toString();
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return getParameter(ScriptEngine.ENGINE_VERSION).toString();
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> getNames() {
+        return asList("exec", "executable", "Exec");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return getParameter(ScriptEngine.LANGUAGE).toString();
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return getParameter(ScriptEngine.LANGUAGE_VERSION).toString();
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        return parameters.get(key);
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        String methodCall = m;
+        for (String arg : args) {
+            methodCall += " " + arg;
+        }
+        return methodCall;
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return utilShell.getOutputStatement(toDisplay);
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        return utilShell.getProgram(statements);
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new ShellEngine(new Exec());
+    }
+}
@@ -0,0 +1,22 @@
+package jsr223.shell;
+
+import javax.script.Bindings;
+
+/**
+ * Receives the results of a {@link ShellFanOut}, on the thread running it.
+ */
+public interface FanOutListener {
+
+    /**
+     * The script exited with {@code bindings}, whatever its exit value. The result is
+     * disposed once this returns.
+     *
+     * @param index of the bindings among the inputs.
+     */
+    void completed(int index, Bindings bindings, CommandResult commandResult);
+
+    /**
+     * The script could not be run with {@code bindings}.
+     */
+    void failed(int index, Bindings bindings, Throwable cause);
+}
@@ -0,0 +1,78 @@
+package jsr223.shell;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in logarithmic buckets, 8 per power of two, so percentiles are known
+ * within about 6% whatever the number of recorded values.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (64 - 4) * SUB_BUCKETS);
+
+    /**
+     * @param nanos negative values count as 0.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(nanos, 0) / 1000));
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param quantile between 0 and 1.
+     * @return the duration below which {@code quantile} of the values are, in nanoseconds.
+     */
+    public long percentile(double quantile) {
+        long[] snapshot = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(rank, 1)) {
+                return middle(i) * 1000;
+            }
+        }
+        return middle(snapshot.length - 1) * 1000;
+    }
+
+    private static int index(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the value in the middle of the bucket, in microseconds.
+     */
+    private static long middle(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exponent - 3);
+        return lower + (1L << (exponent - 3)) / 2;
+    }
+}
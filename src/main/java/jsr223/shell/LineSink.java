@@ -0,0 +1,29 @@
+package jsr223.shell;
+
+import java.io.IOException;
+
+/**
+ * Receives the lines decoded by a {@link MyLogOutputStream}.
+ * <p>
+ * The characters passed in are only valid for the duration of the call, the array is reused
+ * for the next line.
+ */
+public interface LineSink {
+
+    /**
+     * @param chars holds a line of output, without its line separator.
+     */
+    void processLine(char[] chars, int off, int len) throws IOException;
+
+    /**
+     * Receives the beginning of a line too long to be buffered, the rest of it follows in
+     * further calls to this method and the final {@link #processLine(char[], int, int)}.
+     */
+    void processLinePart(char[] chars, int off, int len) throws IOException;
+
+    /**
+     * Called when the stream is flushed or closed, a sink buffering lines writes them out.
+     * Between these calls, the sink flushes whenever it sees fit.
+     */
+    void flush() throws IOException;
+}
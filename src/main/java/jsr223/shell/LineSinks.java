@@ -0,0 +1,122 @@
+package jsr223.shell;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Common {@link LineSink} implementations.
+ */
+public final class LineSinks {
+
+    private LineSinks() {
+    }
+
+    /**
+     * Appends every line, followed by a line feed, to {@code sb}.
+     */
+    public static LineSink toBuilder(final StringBuilder sb) {
+        return new LineSink() {
+            @Override
+            public void processLine(char[] chars, int off, int len) {
+                sb.append(chars, off, len).append('\n');
+            }
+
+            @Override
+            public void processLinePart(char[] chars, int off, int len) {
+                sb.append(chars, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+        };
+    }
+
+    /**
+     * Writes every line, followed by a line feed, to {@code writer} as soon as it is decoded.
+     * The writer is flushed once {@code flushSize} characters are pending, or when a line comes
+     * {@code flushMillis} or more after the last flush, and when the stream is closed. Lines
+     * followed by a quiet process stay in the writer until one of these happens.
+     */
+    public static LineSink toWriter(final Writer writer, final int flushSize, final long flushMillis) {
+        return new LineSink() {
+            private int pending;
+
+            private long flushed = System.nanoTime();
+
+            @Override
+            public void processLine(char[] chars, int off, int len) throws IOException {
+                writer.write(chars, off, len);
+                writer.write('\n');
+                written(len + 1);
+            }
+
+            @Override
+            public void processLinePart(char[] chars, int off, int len) throws IOException {
+                writer.write(chars, off, len);
+                written(len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (pending > 0) {
+                    pending = 0;
+                    flushed = System.nanoTime();
+                    writer.flush();
+                }
+            }
+
+            private void written(int len) throws IOException {
+                pending += len;
+                if (pending >= flushSize || System.nanoTime() - flushed >= flushMillis * 1000000L) {
+                    flush();
+                }
+            }
+        };
+    }
+
+    /**
+     * Forwards every line to all {@code sinks}, null ones are ignored.
+     */
+    public static LineSink tee(final LineSink... sinks) {
+        LineSink single = null;
+        int count = 0;
+        for (LineSink sink : sinks) {
+            if (sink != null) {
+                single = sink;
+                count++;
+            }
+        }
+        if (count == 1) {
+            return single;
+        }
+        return new LineSink() {
+            @Override
+            public void processLine(char[] chars, int off, int len) throws IOException {
+                for (LineSink sink : sinks) {
+                    if (sink != null) {
+                        sink.processLine(chars, off, len);
+                    }
+                }
+            }
+
+            @Override
+            public void processLinePart(char[] chars, int off, int len) throws IOException {
+                for (LineSink sink : sinks) {
+                    if (sink != null) {
+                        sink.processLinePart(chars, off, len);
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                for (LineSink sink : sinks) {
+                    if (sink != null) {
+                        sink.flush();
+                    }
+                }
+            }
+        };
+    }
+}
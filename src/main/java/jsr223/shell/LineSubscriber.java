@@ -0,0 +1,27 @@
+package jsr223.shell;
+
+/**
+ * Receives the lines of a stream of a process as they are read, like a
+ * {@code java.util.concurrent.Flow.Subscriber}. Lines are only delivered as they are
+ * {@link LineSubscription#request(long) requested}; until then the process is left
+ * blocked on its full pipe.
+ */
+public interface LineSubscriber {
+
+    /**
+     * Called before the process starts.
+     */
+    void onSubscribe(LineSubscription subscription);
+
+    void onLine(OutputLine line);
+
+    /**
+     * The process exited and all its lines were delivered.
+     */
+    void onComplete();
+
+    /**
+     * The evaluation failed, or lines were not requested before its timeout.
+     */
+    void onError(Throwable cause);
+}
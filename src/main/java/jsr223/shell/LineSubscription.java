@@ -0,0 +1,17 @@
+package jsr223.shell;
+
+/**
+ * @see LineSubscriber
+ */
+public interface LineSubscription {
+
+    /**
+     * Asks for {@code n} more lines, may be called from any thread.
+     */
+    void request(long n);
+
+    /**
+     * Stops the delivery of lines, the next ones are dropped without waiting for demand.
+     */
+    void cancel();
+}
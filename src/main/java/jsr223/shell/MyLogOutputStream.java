@@ -1,15 +1,25 @@
 package jsr223.shell;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * Base class to connect a logging system to the output and/or
  * error stream of then external process. The implementation
  * parses the incoming data to construct a line and passes
  * the complete line to an user-defined implementation.
+ * <p>
+ * Bytes are decoded as they arrive into a reused character buffer, multi-byte
+ * sequences split across writes are kept until they are complete. ASCII runs of
+ * ASCII compatible charsets, and all of ISO-8859-1, bypass the decoder.
+ * The sink decides when to flush what it received, it is only forced to by
+ * {@link #flush()} and {@link #close()}.
  *
  * @version $Id: LogOutputStream.java 1636056 2014-11-01 21:12:52Z ggregory $
  */
@@ -18,21 +28,35 @@ public class MyLogOutputStream extends OutputStream {
     /** Initial buffer size. */
     private static final int INITIAL_SIZE = 132;
 
+    /** Longest line kept in the buffer, longer ones are passed on in parts. */
+    private static final int MAX_LINE_SIZE = 8192;
+
+    /** Size of the buffer holding bytes not decoded yet. */
+    private static final int BYTE_BUFFER_SIZE = 1024;
+
     /** Carriage return */
     private static final int CR = 0x0d;
 
     /** Linefeed */
     private static final int LF = 0x0a;
 
-    /** the internal buffer */
-    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
-            INITIAL_SIZE);
+    /** bytes waiting to be decoded, in write mode */
+    private final ByteBuffer bytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+
+    /** the current line, in write mode */
+    private CharBuffer line = CharBuffer.allocate(INITIAL_SIZE);
 
     private boolean skip = false;
 
-    private final StringBuilder sb;
+    private final LineSink sink;
+
+    private final CharsetDecoder decoder;
+
+    /** bytes below 0x80 decode to the same char */
+    private final boolean asciiCompatible;
 
-    private final String charsetName;
+    /** every byte decodes to the same char */
+    private final boolean latin1;
 
     /**
      * Creates a new instance of this class.
@@ -48,8 +72,23 @@ public class MyLogOutputStream extends OutputStream {
      * @param charsetName
      */
     public MyLogOutputStream(final StringBuilder sb, final String charsetName) {
-        this.sb = sb;
-        this.charsetName = charsetName;
+        this(LineSinks.toBuilder(sb), charsetName);
+    }
+
+    /**
+     * Creates a new instance of this class passing every line to {@code sink}.
+     *
+     * @param sink
+     * @param charsetName the platform charset when null.
+     */
+    public MyLogOutputStream(final LineSink sink, final String charsetName) {
+        this.sink = sink;
+        Charset charset = charsetName == null ? Charset.defaultCharset() : Charset.forName(charsetName);
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.asciiCompatible = decodesToItself(charset, 0x80);
+        this.latin1 = decodesToItself(charset, 0x100);
     }
 
     /**
@@ -62,14 +101,14 @@ public class MyLogOutputStream extends OutputStream {
     @Override
     public void write(final int cc) throws IOException {
         final byte c = (byte) cc;
-        if (c == '\n' || c == '\r') {
-            if (!skip) {
+        if (c == LF || c == CR) {
+            if (!skip || c == CR) {
                 processBuffer();
             }
         } else {
-            buffer.write(cc);
+            decode(new byte[]{c}, 0, 1);
         }
-        skip = c == '\r';
+        skip = c == CR;
     }
 
     /**
@@ -78,10 +117,11 @@ public class MyLogOutputStream extends OutputStream {
      * @see java.io.OutputStream#flush()
      */
     @Override
-    public void flush() throws UnsupportedEncodingException {
-        if (buffer.size() > 0) {
+    public void flush() throws IOException {
+        if (hasBufferedData()) {
             processBuffer();
         }
+        sink.flush();
     }
 
     /**
@@ -91,9 +131,10 @@ public class MyLogOutputStream extends OutputStream {
      */
     @Override
     public void close() throws IOException {
-        if (buffer.size() > 0) {
+        if (hasBufferedData()) {
             processBuffer();
         }
+        sink.flush();
         super.close();
     }
 
@@ -109,44 +150,140 @@ public class MyLogOutputStream extends OutputStream {
     @Override
     public void write(final byte[] b, final int off, final int len)
             throws IOException {
-        // find the line breaks and pass other chars through in blocks
-        int offset = off;
-        int blockStartOffset = offset;
-        int remaining = len;
-        while (remaining > 0) {
-            while (remaining > 0 && b[offset] != LF && b[offset] != CR) {
-                offset++;
-                remaining--;
+        // find the line breaks and decode the other bytes in blocks
+        final int end = off + len;
+        int blockStartOffset = off;
+        for (int offset = off; offset < end; offset++) {
+            final byte c = b[offset];
+            if (c == LF || c == CR) {
+                decode(b, blockStartOffset, offset - blockStartOffset);
+                // a LF right after a CR ends the same line
+                if (!skip || c == CR || blockStartOffset < offset) {
+                    processBuffer();
+                }
+                skip = c == CR;
+                blockStartOffset = offset + 1;
             }
-            // either end of buffer or a line separator char
-            final int blockLength = offset - blockStartOffset;
-            if (blockLength > 0) {
-                buffer.write(b, blockStartOffset, blockLength);
-            }
-            while (remaining > 0 && (b[offset] == LF || b[offset] == CR)) {
-                write(b[offset]);
-                offset++;
-                remaining--;
-            }
-            blockStartOffset = offset;
+        }
+        if (blockStartOffset < end) {
+            decode(b, blockStartOffset, end - blockStartOffset);
+            skip = false;
         }
     }
 
     /**
-     * Converts the buffer to a string and sends it to {@code processLine}.
+     * Sends the current line to {@code processLine}.
      */
-    protected void processBuffer() throws UnsupportedEncodingException {
-        processLine(buffer.toString(charsetName));
-        buffer.reset();
+    protected void processBuffer() throws IOException {
+        bytes.flip();
+        decodeBytes(true);
+        bytes.clear();
+        while (decoder.flush(line).isOverflow()) {
+            makeRoom(true);
+        }
+        decoder.reset();
+        processLine(line.array(), 0, line.position());
+        line.clear();
     }
 
     /**
      * Logs a line to the log system of the user.
      *
-     * @param line
-     *            the line to log.
+     * @param chars holds the line to log, only valid during the call.
      */
-    protected void processLine(final String line) {
-        sb.append(line).append("\n");
+    protected void processLine(final char[] chars, final int off, final int len) throws IOException {
+        sink.processLine(chars, off, len);
+    }
+
+    private boolean hasBufferedData() {
+        return line.position() > 0 || bytes.position() > 0;
+    }
+
+    private void decode(final byte[] b, int off, int len) throws IOException {
+        if (latin1) {
+            while (len > 0) {
+                final int n = Math.min(len, makeRoom(false));
+                final char[] chars = line.array();
+                int pos = line.position();
+                for (int i = off; i < off + n; i++) {
+                    chars[pos++] = (char) (b[i] & 0xff);
+                }
+                line.position(pos);
+                off += n;
+                len -= n;
+            }
+            return;
+        }
+        if (asciiCompatible && bytes.position() == 0) {
+            // fast path for the ASCII run at a character boundary
+            while (len > 0 && b[off] >= 0) {
+                final int n = Math.min(len, makeRoom(false));
+                final char[] chars = line.array();
+                int pos = line.position();
+                int i = off;
+                while (i < off + n && b[i] >= 0) {
+                    chars[pos++] = (char) b[i++];
+                }
+                line.position(pos);
+                len -= i - off;
+                off = i;
+            }
+        }
+        while (len > 0) {
+            final int n = Math.min(len, bytes.remaining());
+            bytes.put(b, off, n);
+            off += n;
+            len -= n;
+            bytes.flip();
+            decodeBytes(false);
+            bytes.compact();
+        }
+    }
+
+    private void decodeBytes(final boolean endOfInput) throws IOException {
+        CoderResult result = decoder.decode(bytes, line, endOfInput);
+        while (result.isOverflow()) {
+            makeRoom(true);
+            result = decoder.decode(bytes, line, endOfInput);
+        }
+    }
+
+    /**
+     * Makes room in the line buffer, growing it or passing on the part of the line
+     * it holds once it is at its maximum size.
+     *
+     * @param force even if the buffer is not full, the decoder may need several chars.
+     * @return the number of chars that can be added.
+     */
+    private int makeRoom(final boolean force) throws IOException {
+        if (force || !line.hasRemaining()) {
+            if (line.capacity() < MAX_LINE_SIZE) {
+                final CharBuffer larger = CharBuffer.allocate(Math.min(line.capacity() * 2, MAX_LINE_SIZE));
+                line.flip();
+                larger.put(line);
+                line = larger;
+            } else {
+                sink.processLinePart(line.array(), 0, line.position());
+                line.clear();
+            }
+        }
+        return line.remaining();
+    }
+
+    private static boolean decodesToItself(final Charset charset, final int count) {
+        final byte[] b = new byte[count];
+        for (int i = 0; i < count; i++) {
+            b[i] = (byte) i;
+        }
+        final String decoded = new String(b, charset);
+        if (decoded.length() != count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (decoded.charAt(i) != i) {
+                return false;
+            }
+        }
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,276 @@
+package jsr223.shell;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Keeps the first {@code headLimit} and the last {@code tailLimit} characters of an output
+ * in memory, whatever its size. The characters in between are dropped, or spilled to a
+ * temporary file when {@code spill} is set so the whole output can still be read back.
+ * The head and the tail grow with the output up to their limits.
+ */
+public class OutputCapture implements LineSink {
+
+    private static final Charset SPILL_CHARSET = Charset.forName("UTF-8");
+
+    private static final int SPILL_BUFFER_SIZE = 8192;
+
+    private static final char[] NEW_LINE = {'\n'};
+
+    private final int headLimit;
+
+    private final int tailLimit;
+
+    private final boolean spill;
+
+    private final StringBuilder head = new StringBuilder(0);
+
+    private char[] tail = new char[0];
+
+    private int tailStart;
+
+    private int tailSize;
+
+    private long length;
+
+    private File spillFile;
+
+    private FileChannel spillChannel;
+
+    private CharsetEncoder spillEncoder;
+
+    private CharBuffer spillChars;
+
+    private ByteBuffer spillBuffer;
+
+    public OutputCapture(int headLimit, int tailLimit, boolean spill) {
+        this.headLimit = headLimit;
+        this.tailLimit = tailLimit;
+        this.spill = spill;
+    }
+
+    @Override
+    public void processLine(char[] chars, int off, int len) throws IOException {
+        append(chars, off, len);
+        append(NEW_LINE, 0, 1);
+    }
+
+    @Override
+    public void processLinePart(char[] chars, int off, int len) throws IOException {
+        append(chars, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Appends characters to the captured output.
+     */
+    public void append(char[] chars, int off, int len) throws IOException {
+        length += len;
+        if (head.length() < headLimit) {
+            int n = Math.min(headLimit - head.length(), len);
+            head.append(chars, off, n);
+            off += n;
+            len -= n;
+        }
+        if (len > 0) {
+            appendTail(chars, off, len);
+        }
+    }
+
+    /**
+     * @return the total number of characters appended.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return the number of characters held neither in the head nor in the tail.
+     */
+    public long getTruncatedLength() {
+        return length - head.length() - tailSize;
+    }
+
+    /**
+     * @return the head of the output, at most {@code limit} characters.
+     */
+    public String head(int limit) {
+        return head.length() > limit ? head.substring(0, limit) : head.toString();
+    }
+
+    /**
+     * Opens a reader over the whole output, including the spilled characters. Without spill
+     * the truncated characters are skipped.
+     */
+    public synchronized Reader openReader() throws IOException {
+        Reader spilled = null;
+        if (spillChannel != null) {
+            encodeSpill();
+            spilled = new InputStreamReader(new FileInputStream(spillFile), SPILL_CHARSET);
+        }
+        return new SequenceReader(new StringReader(head.toString()), spilled, new StringReader(tailString()));
+    }
+
+    /**
+     * Deletes the spill file, if any. It is not deleted otherwise, not even when the JVM exits.
+     */
+    public synchronized void dispose() {
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+            } catch (IOException e) {
+                ;
+            }
+            spillChannel = null;
+            spillFile.delete();
+        }
+    }
+
+    /**
+     * @return the head followed by the tail of the output.
+     */
+    @Override
+    public String toString() {
+        return head.toString() + tailString();
+    }
+
+    private String tailString() {
+        StringBuilder sb = new StringBuilder(tailSize);
+        int first = Math.min(tailSize, tail.length - tailStart);
+        sb.append(tail, tailStart, first);
+        sb.append(tail, 0, tailSize - first);
+        return sb.toString();
+    }
+
+    private void appendTail(char[] chars, int off, int len) throws IOException {
+        growTail((int) Math.min(tailLimit, (long) tailSize + len));
+        if (len >= tailLimit) {
+            evictTail(tailSize);
+            evict(chars, off, len - tailLimit);
+            System.arraycopy(chars, off + len - tailLimit, tail, 0, tailLimit);
+            tailStart = 0;
+            tailSize = tailLimit;
+            return;
+        }
+        int overflow = tailSize + len - tailLimit;
+        if (overflow > 0) {
+            evictTail(overflow);
+        }
+        int pos = (tailStart + tailSize) % tail.length;
+        int first = Math.min(len, tail.length - pos);
+        System.arraycopy(chars, off, tail, pos, first);
+        System.arraycopy(chars, off + first, tail, 0, len - first);
+        tailSize += len;
+    }
+
+    /**
+     * Grows the tail to hold {@code capacity} characters, at least doubling it. The tail only
+     * wraps around once it reached {@code tailLimit}, it starts at 0 until then.
+     */
+    private void growTail(int capacity) {
+        if (capacity <= tail.length) {
+            return;
+        }
+        char[] grown = new char[Math.min(tailLimit, Math.max(capacity, tail.length * 2))];
+        System.arraycopy(tail, tailStart, grown, 0, tailSize);
+        tail = grown;
+        tailStart = 0;
+    }
+
+    private void evictTail(int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int first = Math.min(count, tail.length - tailStart);
+        evict(tail, tailStart, first);
+        evict(tail, 0, count - first);
+        tailStart = (tailStart + count) % tail.length;
+        tailSize -= count;
+    }
+
+    private synchronized void evict(char[] chars, int off, int len) throws IOException {
+        if (!spill || len == 0) {
+            return;
+        }
+        if (spillChannel == null) {
+            spillFile = File.createTempFile(ShellHandler.SHELL, ".out");
+            spillChannel = new FileOutputStream(spillFile).getChannel();
+            spillEncoder = SPILL_CHARSET.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            spillChars = CharBuffer.allocate(SPILL_BUFFER_SIZE);
+            spillBuffer = ByteBuffer.allocate(SPILL_BUFFER_SIZE * 3);
+        }
+        while (len > 0) {
+            int n = Math.min(len, spillChars.remaining());
+            spillChars.put(chars, off, n);
+            off += n;
+            len -= n;
+            if (!spillChars.hasRemaining()) {
+                encodeSpill();
+            }
+        }
+    }
+
+    private void encodeSpill() throws IOException {
+        spillChars.flip();
+        spillEncoder.encode(spillChars, spillBuffer, false);
+        spillChars.compact();
+        flushSpill();
+    }
+
+    private void flushSpill() throws IOException {
+        spillBuffer.flip();
+        while (spillBuffer.hasRemaining()) {
+            spillChannel.write(spillBuffer);
+        }
+        spillBuffer.clear();
+    }
+
+    /**
+     * Reads its readers one after another, null ones are skipped.
+     */
+    private static class SequenceReader extends Reader {
+
+        private final Reader[] readers;
+
+        private int current;
+
+        SequenceReader(Reader... readers) {
+            this.readers = readers;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            while (current < readers.length) {
+                Reader reader = readers[current];
+                int n = reader == null ? -1 : reader.read(cbuf, off, len);
+                if (n != -1) {
+                    return n;
+                }
+                if (reader != null) {
+                    reader.close();
+                }
+                current++;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (; current < readers.length; current++) {
+                if (readers[current] != null) {
+                    readers[current].close();
+                }
+            }
+        }
+    }
+}
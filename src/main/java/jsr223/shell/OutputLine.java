@@ -0,0 +1,63 @@
+package jsr223.shell;
+
+/**
+ * A line written by a process, without its line separator.
+ */
+public class OutputLine {
+
+    public enum Stream {
+        STDOUT, STDERR
+    }
+
+    private final Stream stream;
+
+    private final long sequence;
+
+    private final long nanoTime;
+
+    private final String text;
+
+    private final boolean partial;
+
+    public OutputLine(Stream stream, long sequence, long nanoTime, String text, boolean partial) {
+        this.stream = stream;
+        this.sequence = sequence;
+        this.nanoTime = nanoTime;
+        this.text = text;
+        this.partial = partial;
+    }
+
+    public Stream getStream() {
+        return stream;
+    }
+
+    /**
+     * @return the number of the line in its stream, from 0.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} when the line was read.
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return true if the line was too long and is continued by the next one.
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    @Override
+    public String toString() {
+        return stream + "#" + sequence + ": " + text;
+    }
+}
@@ -0,0 +1,154 @@
+package jsr223.shell;
+
+import jsr223.shell.util.IOUtil;
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.ExecuteStreamHandler;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs processes with {@link ProcessBuilder} rather than commons-exec, so their output can be
+ * discarded, written to a file, inherited from the JVM or merged, without being copied by
+ * threads of the JVM. Only the streams left as pipes are passed to the stream handler.
+ */
+public class ProcessExecutor {
+
+    private final String[] environment;
+
+    private final ShellTimings timings;
+
+    private ProcessBuilder.Redirect input = ProcessBuilder.Redirect.PIPE;
+
+    private ProcessBuilder.Redirect output = ProcessBuilder.Redirect.PIPE;
+
+    private ProcessBuilder.Redirect error = ProcessBuilder.Redirect.PIPE;
+
+    private boolean mergeError;
+
+    private boolean spawnHelper;
+
+    private ExecuteStreamHandler streamHandler;
+
+    private ScheduledWatchdog watchdog;
+
+    /**
+     * @param environment {@code NAME=value} entries, null to inherit the JVM environment.
+     * @param timings receives the time spent starting the process, may be null.
+     */
+    public ProcessExecutor(String[] environment, ShellTimings timings) {
+        this.environment = environment;
+        this.timings = timings;
+    }
+
+    /**
+     * @param inputFile the process reads its stdin from, may be null.
+     */
+    public void setInputFile(File inputFile) {
+        this.input = inputFile == null ? ProcessBuilder.Redirect.PIPE : ProcessBuilder.Redirect.from(inputFile);
+    }
+
+    public void setOutput(ProcessBuilder.Redirect output) {
+        this.output = output;
+    }
+
+    /**
+     * Ignored when stderr is merged.
+     */
+    public void setError(ProcessBuilder.Redirect error) {
+        this.error = error;
+    }
+
+    /**
+     * @param mergeError writes stderr where stdout goes.
+     */
+    public void setMergeError(boolean mergeError) {
+        this.mergeError = mergeError;
+    }
+
+    /**
+     * @param spawnHelper starts the process with the {@link SpawnClient spawn helper} instead of forking
+     *                    this JVM, unless a stream is inherited.
+     */
+    public void setSpawnHelper(boolean spawnHelper) {
+        this.spawnHelper = spawnHelper;
+    }
+
+    /**
+     * @param streamHandler given the pipes of the process, may be null if nothing is piped.
+     */
+    public void setStreamHandler(ExecuteStreamHandler streamHandler) {
+        this.streamHandler = streamHandler;
+    }
+
+    /**
+     * @param watchdog killing the process, may be null.
+     */
+    public void setWatchdog(ScheduledWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * Runs the command and waits for it to exit and for its piped output to be read.
+     *
+     * @return the exit value of the process.
+     */
+    public int execute(CommandLine command) throws IOException {
+        long start = System.nanoTime();
+        Process process;
+        if (spawnHelper && !isInherited(input) && !isInherited(output) && (mergeError || !isInherited(error))) {
+            process = SpawnClient.getInstance().spawn(command.toStrings(), environment, null, input, output, error, mergeError);
+        } else {
+            process = ShellExecutor.processBuilder(command, environment, null)
+                    .redirectInput(input).redirectOutput(output).redirectError(error).redirectErrorStream(mergeError).start();
+        }
+        if (timings != null) {
+            timings.launched(System.nanoTime() - start);
+        }
+        try {
+            if (streamHandler != null) {
+                streamHandler.setProcessInputStream(process.getOutputStream());
+                streamHandler.setProcessOutputStream(process.getInputStream());
+                streamHandler.setProcessErrorStream(process.getErrorStream());
+                try {
+                    streamHandler.start();
+                } catch (IOException e) {
+                    process.destroy();
+                    throw e;
+                } catch (RuntimeException e) {
+                    process.destroy();
+                    throw e;
+                }
+            } else {
+                process.getOutputStream().close();
+            }
+            if (watchdog != null) {
+                watchdog.start(process);
+            }
+            int exitValue;
+            try {
+                exitValue = ProcessSupport.waitFor(process);
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + command.getExecutable());
+            } finally {
+                if (watchdog != null) {
+                    watchdog.stop();
+                }
+            }
+            if (streamHandler != null) {
+                streamHandler.stop();
+            }
+            return exitValue;
+        } finally {
+            IOUtil.closeSilently(process.getOutputStream());
+            IOUtil.closeSilently(process.getInputStream());
+            IOUtil.closeSilently(process.getErrorStream());
+        }
+    }
+
+    private static boolean isInherited(ProcessBuilder.Redirect redirect) {
+        return redirect.type() == ProcessBuilder.Redirect.Type.INHERIT;
+    }
+}
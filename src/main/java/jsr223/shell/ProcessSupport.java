@@ -0,0 +1,35 @@
+package jsr223.shell;
+
+import java.io.File;
+
+/**
+ * Process features depending on the version of the JVM. The multi-release JAR holds another
+ * version of this class, in src/main/java9, using the process API of Java 9.
+ */
+final class ProcessSupport {
+
+    private static final File NULL_FILE = new File(File.separatorChar == '\\' ? "NUL" : "/dev/null");
+
+    private ProcessSupport() {
+    }
+
+    /**
+     * @return a redirect throwing away what the process writes.
+     */
+    static ProcessBuilder.Redirect discard() {
+        return ProcessBuilder.Redirect.to(NULL_FILE);
+    }
+
+    /**
+     * Waits for the process to exit.
+     */
+    static int waitFor(Process process) throws InterruptedException {
+        return process.waitFor();
+    }
+
+    /**
+     * Destroys the processes started by {@code process}, they are left running before Java 9.
+     */
+    static void destroyDescendants(Process process) {
+    }
+}
@@ -0,0 +1,15 @@
+package jsr223.shell;
+
+/**
+ * Notified of the output published to {@link ShellResults}.
+ */
+public interface ResultListener {
+
+    /**
+     * Called on the thread of the evaluation, keep it short.
+     *
+     * @param key the {@code unique_sequence_no_} binding of the evaluation.
+     * @param output the head of its stdout.
+     */
+    void published(String key, String output);
+}
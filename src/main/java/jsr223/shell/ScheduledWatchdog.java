@@ -0,0 +1,80 @@
+package jsr223.shell;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.Watchdog;
+
+/**
+ * An {@link ExecuteWatchdog} whose timeout is handled by {@link ShellTimeouts} instead of
+ * a thread of its own.
+ */
+public class ScheduledWatchdog extends ExecuteWatchdog {
+
+    private final long timeout;
+
+    private ShellTimeouts.Deadline deadline;
+
+    private Process process;
+
+    private boolean started;
+
+    private boolean killed;
+
+    /**
+     * @param timeout in milliseconds, negative to never destroy the process unless it is killed.
+     */
+    public ScheduledWatchdog(long timeout) {
+        super(INFINITE_TIMEOUT);
+        this.timeout = timeout;
+    }
+
+    @Override
+    public synchronized void start(Process process) {
+        super.start(process);
+        this.process = process;
+        started = true;
+        if (killed) {
+            timeoutOccured(null);
+            return;
+        }
+        if (timeout < 0) {
+            return;
+        }
+        deadline = ShellTimeouts.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timeoutOccured(null);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Destroys the process, or the process about to start, without waiting for it to start
+     * like {@link #destroyProcess()}.
+     */
+    public synchronized void kill() {
+        killed = true;
+        if (started) {
+            timeoutOccured(null);
+        }
+    }
+
+    /**
+     * Destroys the children of the process too, on Java 9 and later.
+     */
+    @Override
+    public synchronized void timeoutOccured(Watchdog w) {
+        if (process != null && isWatching()) {
+            ProcessSupport.destroyDescendants(process);
+        }
+        super.timeoutOccured(w);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (deadline != null) {
+            deadline.cancel();
+            deadline = null;
+        }
+        super.stop();
+    }
+}
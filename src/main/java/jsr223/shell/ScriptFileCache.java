@@ -0,0 +1,202 @@
+package jsr223.shell;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Script files named after the hash of their content, shared by all engines. A file is
+ * written once and kept while it is referenced; unreferenced files are evicted, least
+ * recently used first, once more than {@code shell_script_cache_size} are held.
+ * <p>
+ * Files go to {@code /dev/shm} when it is available, so they never hit a disk.
+ */
+public class ScriptFileCache {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ScriptFileCache INSTANCE = new ScriptFileCache(
+            System.getProperty(ShellHandler.SHELL + "script_dir"),
+            Integer.parseInt(System.getProperty(ShellHandler.SHELL + "script_cache_size", "256")));
+
+    /** the parent of the directory created on the first acquire, null for the default one */
+    private final String parentDirectory;
+
+    private File directory;
+
+    private final int maxSize;
+
+    private final LinkedHashMap<String, ScriptFile> files = new LinkedHashMap<String, ScriptFile>(16, 0.75f, true);
+
+    public ScriptFileCache(File directory, int maxSize) {
+        this.parentDirectory = null;
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    private ScriptFileCache(String parentDirectory, int maxSize) {
+        this.parentDirectory = parentDirectory;
+        this.maxSize = maxSize;
+    }
+
+    public static ScriptFileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the file holding {@code script}, writing it if it is not cached yet. Every call
+     * must be matched by a call to {@link #release(ScriptFile)}.
+     *
+     * @param charsetName used to write the script, the platform charset when null.
+     * @throws IOException if the file or the directory of the cache cannot be written.
+     */
+    public ScriptFile acquire(String script, String fileExtension, String charsetName) throws IOException {
+        Charset charset = charsetName == null ? Charset.defaultCharset() : Charset.forName(charsetName);
+        byte[] content = script.getBytes(charset.name());
+        String key = hash(content, charset.name()) + fileExtension;
+        synchronized (this) {
+            ScriptFile scriptFile = files.get(key);
+            if (scriptFile == null) {
+                if (directory == null) {
+                    directory = directory(parentDirectory);
+                }
+                scriptFile = new ScriptFile(write(key, content));
+                files.put(key, scriptFile);
+            }
+            scriptFile.references++;
+            evict();
+            return scriptFile;
+        }
+    }
+
+    /**
+     * Keeps a file acquired before from being deleted, until the matching {@link #release(ScriptFile)}.
+     */
+    public synchronized void retain(ScriptFile scriptFile) {
+        scriptFile.references++;
+    }
+
+    public synchronized void release(ScriptFile scriptFile) {
+        scriptFile.references--;
+        evict();
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    /**
+     * Deletes every file not referenced anymore.
+     */
+    public synchronized void clear() {
+        for (Iterator<ScriptFile> it = files.values().iterator(); it.hasNext(); ) {
+            ScriptFile scriptFile = it.next();
+            if (scriptFile.references <= 0) {
+                scriptFile.file.delete();
+                it.remove();
+            }
+        }
+    }
+
+    private void evict() {
+        int excess = files.size() - maxSize;
+        for (Iterator<ScriptFile> it = files.values().iterator(); excess > 0 && it.hasNext(); ) {
+            ScriptFile scriptFile = it.next();
+            if (scriptFile.references <= 0) {
+                scriptFile.file.delete();
+                it.remove();
+                excess--;
+            }
+        }
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(directory, name);
+        File temporaryFile = File.createTempFile(ShellHandler.SHELL, ".tmp", directory);
+        OutputStream os = new FileOutputStream(temporaryFile);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            file.delete();
+            if (!temporaryFile.renameTo(file)) {
+                temporaryFile.delete();
+                throw new IOException("Could not create script file " + file);
+            }
+        }
+        return file;
+    }
+
+    private static String hash(byte[] content, String charsetName) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(charsetName.getBytes("US-ASCII"));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(content);
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static File directory(String configured) throws IOException {
+        File parent = new File("/dev/shm");
+        if (configured != null) {
+            parent = new File(configured);
+        } else if (!parent.isDirectory() || !parent.canWrite()) {
+            parent = new File(System.getProperty("java.io.tmpdir"));
+        }
+        // one directory per JVM, so a JVM never deletes a file another one is running
+        final File directory = File.createTempFile(ShellHandler.SHELL, ".scripts", parent);
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                File[] children = directory.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        child.delete();
+                    }
+                }
+                directory.delete();
+            }
+        }, "jsr223-shell-script-cleanup"));
+        return directory;
+    }
+
+    /**
+     * A cached script file, valid until it is released.
+     */
+    public static class ScriptFile {
+
+        private final File file;
+
+        private int references;
+
+        ScriptFile(File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package jsr223.shell;
+
+import org.apache.commons.exec.ExecuteStreamHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies the output of a process with the threads of {@link StreamPumps} instead of
+ * starting threads of its own like {@link org.apache.commons.exec.PumpStreamHandler}.
+ * <p>
+ * Output written by background children after the process itself exited is not copied. The
+ * output streams must not block, see {@link StreamPumps}.
+ */
+public class SharedPumpStreamHandler implements ExecuteStreamHandler {
+
+    private final OutputStream out;
+
+    private final OutputStream err;
+
+    private InputStream processOut;
+
+    private InputStream processErr;
+
+    private StreamPumps.Pump outPump;
+
+    private StreamPumps.Pump errPump;
+
+    /**
+     * @param out receives stdout, null not to read it.
+     * @param err receives stderr, null not to read it.
+     */
+    public SharedPumpStreamHandler(OutputStream out, OutputStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    @Override
+    public void setProcessInputStream(OutputStream os) throws IOException {
+        os.close();
+    }
+
+    @Override
+    public void setProcessErrorStream(InputStream is) {
+        this.processErr = is;
+    }
+
+    @Override
+    public void setProcessOutputStream(InputStream is) {
+        this.processOut = is;
+    }
+
+    @Override
+    public void start() {
+        outPump = out == null ? null : StreamPumps.register(processOut, out);
+        errPump = err == null ? null : StreamPumps.register(processErr, err);
+    }
+
+    /**
+     * Called once the process exited, copies what it left in its pipes.
+     */
+    @Override
+    public void stop() throws IOException {
+        try {
+            if (outPump != null) {
+                outPump.finish();
+            }
+        } finally {
+            if (errPump != null) {
+                errPump.finish();
+            }
+            if (out != null) {
+                out.flush();
+            }
+            if (err != null) {
+                err.flush();
+            }
+        }
+    }
+}
@@ -10,12 +10,33 @@ public interface Shell {
 
     CommandLine createByCommand(String command);
 
+    /**
+     * @return a command line running the script written to its stdin, the script itself
+     * having its stdin closed; null if the shell can not read a script that way.
+     */
+    CommandLine createByStdin();
+
+    /**
+     * @return the name of the shell binary.
+     */
+    String getExecutable();
+
     String getInstalledVersionCommand();
 
     String getMajorVersionCommand();
 
+    /**
+     * @return a command printing the installed version and the major version on two lines.
+     */
+    String getVersionCommand();
+
     String getOutputStatement(String toDisplay);
 
     String getProgram(String... statements);
 
+    /**
+     * @return the extension, with its leading dot, of the files {@link #createByFile(File)} runs.
+     */
+    String getFileExtension();
+
 }
@@ -0,0 +1,22 @@
+package jsr223.shell;
+
+/**
+ * Notified when an evaluation started by {@link ShellEngine#evalAsync} ends.
+ */
+public interface ShellCallback {
+
+    /**
+     * The script exited, whatever its exit value.
+     */
+    void completed(CommandResult commandResult);
+
+    /**
+     * The script could not be run.
+     */
+    void failed(Throwable cause);
+
+    /**
+     * The evaluation was cancelled, its process is destroyed.
+     */
+    void cancelled();
+}
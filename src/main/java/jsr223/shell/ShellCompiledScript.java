@@ -0,0 +1,66 @@
+package jsr223.shell;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * A script written once to a file of the {@link ScriptFileCache}, every evaluation runs that
+ * file. The file is kept until {@link #release()} is called.
+ */
+public class ShellCompiledScript extends CompiledScript {
+
+    private final ShellEngine engine;
+
+    private final String script;
+
+    private ScriptFileCache.ScriptFile scriptFile;
+
+    ShellCompiledScript(ShellEngine engine, String script, ScriptFileCache.ScriptFile scriptFile) {
+        this.engine = engine;
+        this.script = script;
+        this.scriptFile = scriptFile;
+    }
+
+    /**
+     * Holds a reference to the script file while it runs, so releasing the compiled script
+     * meanwhile does not delete it.
+     */
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        ScriptFileCache.ScriptFile file;
+        synchronized (this) {
+            file = scriptFile;
+            if (file == null) {
+                throw new IllegalStateException("Compiled script was released");
+            }
+            ScriptFileCache.getInstance().retain(file);
+        }
+        try {
+            return engine.eval(script, file, context);
+        } finally {
+            ScriptFileCache.getInstance().release(file);
+        }
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    /**
+     * Releases the script file, it is deleted once no other compiled script uses it and it
+     * gets evicted from the cache.
+     */
+    public synchronized void release() {
+        if (scriptFile != null) {
+            ScriptFileCache.getInstance().release(scriptFile);
+            scriptFile = null;
+        }
+    }
+}
@@ -1,36 +1,158 @@
 package jsr223.shell;
 
+import jsr223.shell.bash.BashWorkerPool;
+import jsr223.shell.exec.Exec;
 import jsr223.shell.util.IOUtil;
 
 import javax.script.*;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.Executor;
 
-public class ShellEngine extends AbstractScriptEngine {
+public class ShellEngine extends AbstractScriptEngine implements Compilable {
 
     private Shell shell;
 
+    private BashWorkerPool workerPool;
+
     public ShellEngine(Shell shell) {
+        this(shell, null);
+    }
+
+    /**
+     * @param workerPool evaluates scripts on long-lived bash workers instead of starting
+     *                   a shell per evaluation, only for {@link jsr223.shell.bash.Bash}; may be null.
+     */
+    public ShellEngine(Shell shell, BashWorkerPool workerPool) {
         this.shell = shell;
+        this.workerPool = workerPool;
+        ShellHandler.startSpawnHelper();
     }
 
     @Override
     public Object eval(String script, ScriptContext context) throws ScriptException {
         CommandResult commandResult;
         try {
-            commandResult = new ShellHandler(shell).run(script, context);
+            commandResult = new ShellHandler(shell, workerPool).run(script, context);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        if (commandResult.getExitValue() != 0) {
-            throw new ScriptException("Script failed with exit code " + commandResult.getExitValue() + "\nError message:" + commandResult.getErrorMessage());
+        return toReturnValue(commandResult);
+    }
+
+    /**
+     * Evaluates a script with the context of the engine on a thread of its own, a virtual
+     * one when the {@code shell_threads} binding is "virtual".
+     *
+     * @see #evalAsync(String, ScriptContext, Executor, ShellCallback)
+     */
+    public ShellFuture evalAsync(String script) {
+        boolean virtual = ShellHandler.isVirtual(context.getBindings(ScriptContext.ENGINE_SCOPE));
+        return evalAsync(script, context, ShellThreads.perTask("jsr223-shell-eval", virtual), null);
+    }
+
+    /**
+     * Evaluates a script with the context of the engine on {@code executor}.
+     *
+     * @see #evalAsync(String, ScriptContext, Executor, ShellCallback)
+     */
+    public ShellFuture evalAsync(String script, Executor executor) {
+        return evalAsync(script, context, executor, null);
+    }
+
+    /**
+     * Evaluates a script on {@code executor}, whose thread waits for the process. The result
+     * holds the exit value, not checked like by {@link #eval(String, ScriptContext)}, and must be
+     * {@link CommandResult#dispose() disposed} once read. Cancelling the future destroys the process.
+     *
+     * @param callback notified when the evaluation ends, on the thread running or cancelling it; may be null.
+     */
+    public ShellFuture evalAsync(String script, ScriptContext context, Executor executor, ShellCallback callback) {
+        ShellFuture future = new ShellFuture(new ShellHandler(shell, workerPool), script, context, callback);
+        executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Evaluates scripts with the context of the engine, in a single shell process with bash.
+     * Exit values are not checked, the results must be {@link CommandResult#dispose() disposed}.
+     *
+     * @param bindings of every script, added to the engine bindings; may be shorter than
+     *                 {@code scripts} or hold nulls. Bindings whose names are not valid bash
+     *                 variable names are not exported.
+     * @param failFast stops after the first script failing, the result list is shorter then.
+     * @see ShellHandler#runBatch(List, List, ScriptContext, boolean)
+     */
+    public List<CommandResult> evalBatch(List<String> scripts, List<? extends Bindings> bindings, boolean failFast) throws ScriptException {
+        try {
+            return new ShellHandler(shell, workerPool).runBatch(scripts, bindings, context, failFast);
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+    }
+
+    /**
+     * Evaluates a script once per bindings, with as many processes at a time as there are processors.
+     *
+     * @see ShellFanOut
+     */
+    public ShellFanOut.Stats fanOut(String script, Iterable<? extends Bindings> inputs, FanOutListener listener) throws InterruptedException {
+        return new ShellFanOut(this).run(script, inputs, listener);
+    }
+
+    Object eval(String script, ScriptFileCache.ScriptFile scriptFile, ScriptContext context) throws ScriptException {
+        CommandResult commandResult;
+        try {
+            commandResult = new ShellHandler(shell, workerPool).run(script, scriptFile, context);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return toReturnValue(commandResult);
+    }
+
+    static Object toReturnValue(CommandResult commandResult) throws ScriptException {
+        try {
+            if (commandResult.getExitValue() != 0) {
+                throw new ScriptException("Script failed with exit code " + commandResult.getExitValue() + "\nError message:" + commandResult.getErrorMessage());
+            }
+            return commandResult.getExitValue();
+        } finally {
+            commandResult.dispose();
         }
-        return commandResult.getExitValue();
     }
 
     @Override
     public Object eval(Reader reader, ScriptContext context) throws ScriptException {
-        return eval(IOUtil.toString(reader), context);
+        CommandResult commandResult;
+        try {
+            commandResult = new ShellHandler(shell, workerPool).run(reader, context);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return toReturnValue(commandResult);
+    }
+
+    /**
+     * Writes the script to a file named after its content, shared by all the scripts compiled
+     * from the same text. The {@code shell_language} and {@code shell_charset_command} engine
+     * bindings select the extension and the charset of the file.
+     */
+    @Override
+    public ShellCompiledScript compile(String script) throws ScriptException {
+        try {
+            ScriptFileCache.ScriptFile scriptFile = new ShellHandler(shell, workerPool)
+                    .acquireScriptFile(script, getBindings(ScriptContext.ENGINE_SCOPE));
+            return new ShellCompiledScript(this, script, scriptFile);
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+    }
+
+    @Override
+    public ShellCompiledScript compile(Reader script) throws ScriptException {
+        String text = IOUtil.toString(script);
+        return compile(text == null ? "" : text);
     }
 
     @Override
@@ -40,6 +162,9 @@ public class ShellEngine extends AbstractScriptEngine {
 
     @Override
     public ScriptEngineFactory getFactory() {
+        if (shell instanceof Exec) {
+            return new ExecEngineFactory();
+        }
         return new ShellEngineFactory();
     }
 }
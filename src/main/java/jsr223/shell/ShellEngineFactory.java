@@ -1,10 +1,12 @@
 package jsr223.shell;
 
 import jsr223.shell.bash.Bash;
+import jsr223.shell.bash.BashWorkerPool;
 import jsr223.shell.cmd.Cmd;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,19 +15,20 @@ import static java.util.Arrays.asList;
 
 public class ShellEngineFactory implements ScriptEngineFactory {
 
-    private static ShellHandler utilShellHandler;
     private static Shell utilShell;
     private static boolean isWin;
     private static final Map<String, Object> parameters = new HashMap<String, Object>();
 
+    private static int poolSize = Integer.parseInt(System.getProperty(ShellHandler.SHELL + "pool_size", "0"));
+    private static int poolMaxEvals = Integer.parseInt(System.getProperty(ShellHandler.SHELL + "pool_max_evals", "1000"));
+    private static BashWorkerPool workerPool;
+
     static {
         isWin = System.getProperty("os.name").toLowerCase().startsWith("win");
-        utilShellHandler = new ShellHandler(createShell());
+        utilShell = createShell();
         parameters.put(ScriptEngine.NAME, "shell");
         parameters.put(ScriptEngine.ENGINE, "Shell interpreter");
-        parameters.put(ScriptEngine.ENGINE_VERSION, utilShellHandler.getInstalledVersion());
         parameters.put(ScriptEngine.LANGUAGE, "Shell");
-        parameters.put(ScriptEngine.LANGUAGE_VERSION, utilShellHandler.getMajorVersion());
     }
 
     @Override
@@ -74,8 +77,17 @@ public class ShellEngineFactory implements ScriptEngineFactory {
         return getParameter(ScriptEngine.LANGUAGE_VERSION).toString();
     }
 
+    /**
+     * The versions are probed the first time they are asked for, see {@link ShellVersions}.
+     */
     @Override
     public Object getParameter(String key) {
+        if (ScriptEngine.ENGINE_VERSION.equals(key)) {
+            return ShellVersions.getInstalledVersion(utilShell);
+        }
+        if (ScriptEngine.LANGUAGE_VERSION.equals(key)) {
+            return ShellVersions.getMajorVersion(utilShell);
+        }
         return parameters.get(key);
     }
 
@@ -100,7 +112,33 @@ public class ShellEngineFactory implements ScriptEngineFactory {
 
     @Override
     public ScriptEngine getScriptEngine() {
-        return new ShellEngine(createShell());
+        return new ShellEngine(createShell(), getWorkerPool());
+    }
+
+    /**
+     * Starts the bash workers shared by the engines of this factory ahead of the first
+     * evaluation. Does nothing unless {@code shell_pool_size} is positive.
+     */
+    public void prewarm() {
+        BashWorkerPool pool = getWorkerPool();
+        if (pool != null) {
+            try {
+                pool.prewarm();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static synchronized BashWorkerPool getWorkerPool() {
+        if (isWin || poolSize <= 0) {
+            return null;
+        }
+        if (workerPool == null) {
+            workerPool = new BashWorkerPool(poolSize, poolMaxEvals, ShellHandler.getCharsetName(),
+                    ShellHandler.getDefaultEnvironment().getVariables());
+        }
+        return workerPool;
     }
 
     private static Shell createShell() {
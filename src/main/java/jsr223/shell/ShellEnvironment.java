@@ -0,0 +1,128 @@
+package jsr223.shell;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The environment every process starts from, encoded once as {@code NAME=value} entries.
+ * Evaluations only encode the variables they add or override.
+ * <p>
+ * The base is the JVM environment ({@value #INHERIT}), nothing ({@value #EMPTY}), or the
+ * variables of the JVM environment named in a comma separated whitelist ({@value #WHITELIST}).
+ */
+public final class ShellEnvironment {
+
+    public static final String INHERIT = "inherit";
+
+    public static final String EMPTY = "empty";
+
+    public static final String WHITELIST = "whitelist";
+
+    /** Encoded variables kept for reuse, the cache is cleared once it holds more. */
+    private static final int MAX_ENCODED = 4096;
+
+    private static final ConcurrentMap<String, ShellEnvironment> environments = new ConcurrentHashMap<String, ShellEnvironment>();
+
+    private final Map<String, String> variables;
+
+    private final String[] encoded;
+
+    private final Map<String, Integer> indexes;
+
+    private final ConcurrentMap<String, String[]> encodedDelta = new ConcurrentHashMap<String, String[]>();
+
+    private ShellEnvironment(Map<String, String> variables) {
+        this.variables = Collections.unmodifiableMap(new HashMap<String, String>(variables));
+        this.encoded = new String[variables.size()];
+        this.indexes = new HashMap<String, Integer>(variables.size() * 2);
+        int i = 0;
+        for (Map.Entry<String, String> variable : this.variables.entrySet()) {
+            encoded[i] = variable.getKey() + "=" + variable.getValue();
+            indexes.put(variable.getKey(), i);
+            i++;
+        }
+    }
+
+    /**
+     * @param mode      {@value #INHERIT}, {@value #EMPTY} or {@value #WHITELIST}.
+     * @param whitelist comma separated names of the variables kept in {@value #WHITELIST} mode.
+     */
+    public static ShellEnvironment get(String mode, String whitelist) {
+        String key = WHITELIST.equals(mode) ? mode + ":" + whitelist : mode;
+        ShellEnvironment environment = environments.get(key);
+        if (environment == null) {
+            environment = new ShellEnvironment(base(mode, whitelist));
+            ShellEnvironment previous = environments.putIfAbsent(key, environment);
+            if (previous != null) {
+                environment = previous;
+            }
+        }
+        return environment;
+    }
+
+    /**
+     * @return the base variables.
+     */
+    public Map<String, String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * @return the base entries with {@code delta} layered on top, as expected by {@link Runtime#exec(String[], String[])}.
+     */
+    public String[] encode(Map<String, String> delta) {
+        String[] entries = new String[encoded.length + delta.size()];
+        System.arraycopy(encoded, 0, entries, 0, encoded.length);
+        int size = encoded.length;
+        for (Map.Entry<String, String> variable : delta.entrySet()) {
+            String entry = encode(variable.getKey(), variable.getValue());
+            Integer index = indexes.get(variable.getKey());
+            if (index != null) {
+                entries[index] = entry;
+            } else {
+                entries[size++] = entry;
+            }
+        }
+        return size == entries.length ? entries : Arrays.copyOf(entries, size);
+    }
+
+    /**
+     * Values of bindings holding the same string again are the same instance, they are recognized
+     * without comparing their characters.
+     */
+    private String encode(String name, String value) {
+        String[] cached = encodedDelta.get(name);
+        if (cached != null && (cached[0] == value || cached[0].equals(value))) {
+            return cached[1];
+        }
+        String entry = name + "=" + value;
+        if (encodedDelta.size() >= MAX_ENCODED) {
+            encodedDelta.clear();
+        }
+        encodedDelta.put(name, new String[]{value, entry});
+        return entry;
+    }
+
+    private static Map<String, String> base(String mode, String whitelist) {
+        if (EMPTY.equals(mode)) {
+            return Collections.emptyMap();
+        }
+        if (WHITELIST.equals(mode)) {
+            Map<String, String> variables = new HashMap<String, String>();
+            if (whitelist != null) {
+                for (String name : whitelist.split(",")) {
+                    String value = System.getenv(name.trim());
+                    if (value != null) {
+                        variables.put(name.trim(), value);
+                    }
+                }
+            }
+            return variables;
+        }
+        if (INHERIT.equals(mode)) {
+            return System.getenv();
+        }
+        throw new IllegalArgumentException("Unknown environment mode: " + mode);
+    }
+}
@@ -0,0 +1,93 @@
+package jsr223.shell;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Launches processes with an already encoded environment instead of converting a map on
+ * every execution.
+ */
+public class ShellExecutor extends DefaultExecutor {
+
+    private final String[] environment;
+
+    private final ShellTimings timings;
+
+    private File inputFile;
+
+    private boolean spawnHelper;
+
+    /**
+     * @param environment {@code NAME=value} entries, null to inherit the JVM environment.
+     */
+    public ShellExecutor(String[] environment) {
+        this(environment, null);
+    }
+
+    /**
+     * @param timings receives the time spent starting the process, may be null.
+     */
+    ShellExecutor(String[] environment, ShellTimings timings) {
+        this.environment = environment;
+        this.timings = timings;
+    }
+
+    /**
+     * @param inputFile the process reads its stdin from, may be null.
+     */
+    public void setInputFile(File inputFile) {
+        this.inputFile = inputFile;
+    }
+
+    /**
+     * @param spawnHelper starts the process with the {@link SpawnClient spawn helper} instead of forking this JVM.
+     */
+    public void setSpawnHelper(boolean spawnHelper) {
+        this.spawnHelper = spawnHelper;
+    }
+
+    @Override
+    protected Process launch(CommandLine command, Map<String, String> env, File dir) throws IOException {
+        if (dir != null && !dir.exists()) {
+            throw new IOException(dir + " doesn't exist.");
+        }
+        long start = System.nanoTime();
+        Process process;
+        if (spawnHelper) {
+            ProcessBuilder.Redirect input = inputFile == null ? ProcessBuilder.Redirect.PIPE : ProcessBuilder.Redirect.from(inputFile);
+            process = SpawnClient.getInstance().spawn(command.toStrings(), environment, dir,
+                    input, ProcessBuilder.Redirect.PIPE, ProcessBuilder.Redirect.PIPE, false);
+        } else {
+            process = inputFile == null ? Runtime.getRuntime().exec(command.toStrings(), environment, dir)
+                    : launchFromFile(command, dir);
+        }
+        if (timings != null) {
+            timings.launched(System.nanoTime() - start);
+        }
+        return process;
+    }
+
+    private Process launchFromFile(CommandLine command, File dir) throws IOException {
+        return processBuilder(command, environment, dir).redirectInput(inputFile).start();
+    }
+
+    /**
+     * @param environment {@code NAME=value} entries, null to inherit the JVM environment.
+     */
+    static ProcessBuilder processBuilder(CommandLine command, String[] environment, File dir) {
+        ProcessBuilder processBuilder = new ProcessBuilder(command.toStrings()).directory(dir);
+        if (environment != null) {
+            Map<String, String> variables = processBuilder.environment();
+            variables.clear();
+            for (String entry : environment) {
+                int equals = entry.indexOf('=');
+                variables.put(entry.substring(0, equals), entry.substring(equals + 1));
+            }
+        }
+        return processBuilder;
+    }
+}
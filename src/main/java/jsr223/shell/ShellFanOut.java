@@ -0,0 +1,274 @@
+package jsr223.shell;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one script once per set of bindings, at most {@code parallelism} processes at a time.
+ * <p>
+ * Bindings are read from the inputs only when fewer than {@code parallelism + queueSize}
+ * evaluations are pending or, in order, waiting for an earlier one to be delivered, so a lazy
+ * iterator is never read far ahead of the listener.
+ * Results are handed to a {@link FanOutListener} on the calling thread, in the order of the
+ * inputs or as soon as they complete.
+ * <p>
+ * With the {@code shell_threads} engine binding set to "virtual", every evaluation runs on a virtual
+ * thread of its own and the queue is not used, the parallelism may then be in the thousands.
+ */
+public class ShellFanOut {
+
+    private static final int defaultParallelism = Integer.parseInt(System.getProperty(ShellHandler.SHELL + "fanout_parallelism",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private final ShellEngine engine;
+
+    private int parallelism = defaultParallelism;
+
+    private int queueSize = defaultParallelism;
+
+    private boolean ordered = true;
+
+    public ShellFanOut(ShellEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @param parallelism the most processes running at a time, {@code shell_fanout_parallelism}
+     *                    or the number of processors by default.
+     */
+    public ShellFanOut setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param queueSize evaluations waiting for a running one to end, as many as the parallelism by default.
+     */
+    public ShellFanOut setQueueSize(int queueSize) {
+        if (queueSize < 0) {
+            throw new IllegalArgumentException("Queue size must not be negative: " + queueSize);
+        }
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * @param ordered hands results to the listener in the order of the inputs, the default,
+     *                rather than in the order they complete.
+     */
+    public ShellFanOut setOrdered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    public Stats run(String script, Iterable<? extends Bindings> inputs, FanOutListener listener) throws InterruptedException {
+        return run(script, inputs.iterator(), listener);
+    }
+
+    /**
+     * Runs the script once per bindings, added to the engine bindings, and waits for all of them.
+     * When interrupted, or when the listener throws, pending evaluations are cancelled.
+     */
+    public Stats run(String script, Iterator<? extends Bindings> inputs, FanOutListener listener) throws InterruptedException {
+        final LinkedBlockingQueue<Completion> completions = new LinkedBlockingQueue<Completion>();
+        final int id = COUNTER.incrementAndGet();
+        boolean virtual = ShellHandler.isVirtual(engine.getContext().getBindings(ScriptContext.ENGINE_SCOPE));
+        // a virtual thread per evaluation, queueing them would only delay their start
+        int window = virtual ? parallelism : parallelism + queueSize;
+        ExecutorService pool = virtual ? null : new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jsr223-shell-fanout-" + id + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Executor executor = virtual ? ShellThreads.perTask("jsr223-shell-fanout-" + id, true) : pool;
+        Map<Integer, ShellFuture> pending = new HashMap<Integer, ShellFuture>();
+        TreeMap<Integer, Completion> done = new TreeMap<Integer, Completion>();
+        Stats stats = new Stats();
+        long start = System.currentTimeMillis();
+        int submitted = 0;
+        int delivered = 0;
+        try {
+            while (inputs.hasNext() || !pending.isEmpty()) {
+                // completions held back for an earlier one count too, they hold their output
+                if (inputs.hasNext() && pending.size() + done.size() < window) {
+                    final int index = submitted++;
+                    final Bindings bindings = inputs.next();
+                    ScriptContext context = ShellHandler.contextFor(engine.getContext(), bindings);
+                    pending.put(index, engine.evalAsync(script, context, executor, new ShellCallback() {
+                        @Override
+                        public void completed(CommandResult commandResult) {
+                            completions.offer(new Completion(index, bindings, commandResult, null));
+                        }
+
+                        @Override
+                        public void failed(Throwable cause) {
+                            completions.offer(new Completion(index, bindings, null, cause));
+                        }
+
+                        @Override
+                        public void cancelled() {
+                        }
+                    }));
+                    stats.maxPending = Math.max(stats.maxPending, pending.size() + done.size());
+                    Completion completion = completions.poll();
+                    if (completion == null) {
+                        continue;
+                    }
+                    pending.remove(completion.index);
+                    done.put(completion.index, completion);
+                } else {
+                    Completion completion = completions.take();
+                    pending.remove(completion.index);
+                    done.put(completion.index, completion);
+                }
+                while (!done.isEmpty() && (!ordered || done.firstKey() == delivered)) {
+                    deliver(done.remove(done.firstKey()), listener, stats);
+                    delivered++;
+                }
+            }
+        } finally {
+            for (ShellFuture future : pending.values()) {
+                future.cancel(true);
+            }
+            for (Completion completion : completions) {
+                done.put(completion.index, completion);
+            }
+            for (Completion completion : done.values()) {
+                if (completion.commandResult != null) {
+                    completion.commandResult.dispose();
+                }
+            }
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        stats.elapsed = System.currentTimeMillis() - start;
+        return stats;
+    }
+
+    private static void deliver(Completion completion, FanOutListener listener, Stats stats) {
+        if (completion.commandResult == null) {
+            stats.errors++;
+            listener.failed(completion.index, completion.bindings, completion.cause);
+            return;
+        }
+        if (completion.commandResult.getExitValue() == 0) {
+            stats.succeeded++;
+        } else {
+            stats.failed++;
+        }
+        try {
+            listener.completed(completion.index, completion.bindings, completion.commandResult);
+        } finally {
+            completion.commandResult.dispose();
+        }
+    }
+
+    private static class Completion {
+
+        final int index;
+
+        final Bindings bindings;
+
+        final CommandResult commandResult;
+
+        final Throwable cause;
+
+        Completion(int index, Bindings bindings, CommandResult commandResult, Throwable cause) {
+            this.index = index;
+            this.bindings = bindings;
+            this.commandResult = commandResult;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * What a fan-out did, once it ended.
+     */
+    public static class Stats {
+
+        private int succeeded;
+
+        private int failed;
+
+        private int errors;
+
+        private int maxPending;
+
+        private long elapsed;
+
+        /**
+         * @return the number of evaluations exiting with 0.
+         */
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * @return the number of evaluations exiting with another value.
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return the number of evaluations which could not run.
+         */
+        public int getErrors() {
+            return errors;
+        }
+
+        public int getCount() {
+            return succeeded + failed + errors;
+        }
+
+        /**
+         * @return the most evaluations running, queued or waiting to be delivered at a time.
+         */
+        public int getMaxPending() {
+            return maxPending;
+        }
+
+        /**
+         * @return in milliseconds.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * @return evaluations per second.
+         */
+        public double getThroughput() {
+            return elapsed == 0 ? getCount() * 1000.0 : getCount() * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return getCount() + " evaluations in " + elapsed + " ms (" + String.format("%.1f", getThroughput()) + "/s): "
+                    + succeeded + " succeeded, " + failed + " failed, " + errors + " errors";
+        }
+    }
+}
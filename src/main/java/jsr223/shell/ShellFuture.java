@@ -0,0 +1,64 @@
+package jsr223.shell;
+
+import javax.script.ScriptContext;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * An evaluation running on an executor. Cancelling it destroys the process, or the
+ * bash worker, running the script.
+ */
+public class ShellFuture extends FutureTask<CommandResult> {
+
+    private final ShellHandler handler;
+
+    private final ShellCallback callback;
+
+    ShellFuture(final ShellHandler handler, final String script, final ScriptContext context, ShellCallback callback) {
+        super(new Callable<CommandResult>() {
+            @Override
+            public CommandResult call() throws Exception {
+                return handler.run(script, context);
+            }
+        });
+        this.handler = handler;
+        this.callback = callback;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(false);
+        if (cancelled) {
+            handler.cancel();
+        }
+        return cancelled;
+    }
+
+    @Override
+    protected void set(CommandResult commandResult) {
+        super.set(commandResult);
+        if (isCancelled()) {
+            // nobody can get the result of a cancelled evaluation
+            commandResult.dispose();
+        }
+    }
+
+    @Override
+    protected void done() {
+        if (callback == null) {
+            return;
+        }
+        if (isCancelled()) {
+            callback.cancelled();
+            return;
+        }
+        try {
+            callback.completed(get());
+        } catch (ExecutionException e) {
+            callback.failed(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
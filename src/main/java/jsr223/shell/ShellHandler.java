@@ -1,17 +1,40 @@
 package jsr223.shell;
 
+import jsr223.shell.bash.Bash;
+import jsr223.shell.bash.BashFrames;
+import jsr223.shell.bash.BashSession;
+import jsr223.shell.bash.BashWorker;
+import jsr223.shell.bash.BashWorkerPool;
+import jsr223.shell.bash.FramedOutputStream;
+import jsr223.shell.exec.Exec;
 import jsr223.shell.util.IOUtil;
+import jsr223.shell.util.ReaderInputStream;
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.exec.DefaultExecutor;
-import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.ExecuteStreamHandler;
 import org.apache.commons.exec.PumpStreamHandler;
 
 import javax.script.Bindings;
 import javax.script.ScriptContext;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 
 public class ShellHandler {
 
@@ -25,21 +48,239 @@ public class ShellHandler {
 
     private static int limit = Integer.parseInt(System.getProperty(SHELL + "stdout_limit", "65536")); // 64K
 
+    private static boolean resultSystemProperty = Boolean.parseBoolean(System.getProperty(SHELL + "result_system_property", "false"));
+
+    private static boolean stream = Boolean.parseBoolean(System.getProperty(SHELL + "stream", "false"));
+
+    private static int flushSize = Integer.parseInt(System.getProperty(SHELL + "flush_size", "8192"));
+
+    private static long flushIntervalMs = Long.parseLong(System.getProperty(SHELL + "flush_interval_ms", "100"));
+
+    private static int captureHeadKB = Integer.parseInt(System.getProperty(SHELL + "capture_head_kb", "1024"));
+
+    private static int captureTailKB = Integer.parseInt(System.getProperty(SHELL + "capture_tail_kb", "1024"));
+
+    private static boolean captureSpill = Boolean.parseBoolean(System.getProperty(SHELL + "capture_spill", "false"));
+
+    private static String env = System.getProperty(SHELL + "env", ShellEnvironment.INHERIT);
+
+    private static String envWhitelist = System.getProperty(SHELL + "env_whitelist", "");
+
+    private static String pump = System.getProperty(SHELL + "pump", "thread");
+
+    private static String scriptDelivery = System.getProperty(SHELL + "script_delivery", "auto");
+
+    private static String backend = System.getProperty(SHELL + "backend", "exec");
+
+    private static String threads = System.getProperty(SHELL + "threads", ShellThreads.PLATFORM);
+
+    private static String spawn = System.getProperty(SHELL + "spawn", "direct");
+
+    private static boolean cache = Boolean.parseBoolean(System.getProperty(SHELL + "cache", "false"));
+
+    private static long cacheTtl = Long.parseLong(System.getProperty(SHELL + "cache_ttl", "60000"));
+
+    private static long bindingsFileThreshold = Long.parseLong(System.getProperty(SHELL + "bindings_file_threshold", "-1"));
+
+    /** longest script passed as an argument, in chars, bash can not take more than 128 KB in one */
+    private static int scriptArgMax = Integer.parseInt(System.getProperty(SHELL + "script_arg_max", "32768"));
+
+    private static final String SHARED_PUMPS = "shared";
+
     private static final String KEY_LANGUAGE = SHELL + "language";
 
+    /** Binding overriding {@code shell_stream}: write output to the context writers while it is read. */
+    public static final String KEY_STREAM = SHELL + "stream";
+
+    /**
+     * Binding keeping stdout in the {@link CommandResult} when streaming, it always is otherwise, and
+     * so are the results for the {@link ShellResultCache}.
+     */
+    public static final String KEY_CAPTURE = SHELL + "capture";
+
+    /** Binding overriding {@code shell_flush_size}: characters written before the writers are flushed. */
+    public static final String KEY_FLUSH_SIZE = SHELL + "flush_size";
+
+    /**
+     * Binding overriding {@code shell_flush_interval_ms}: milliseconds after which the next line
+     * flushes the writers, whatever the characters pending.
+     */
+    public static final String KEY_FLUSH_INTERVAL_MS = SHELL + "flush_interval_ms";
+
+    /** Binding overriding {@code shell_capture_head_kb}: leading characters kept in memory, in units of 1024. */
+    public static final String KEY_CAPTURE_HEAD_KB = SHELL + "capture_head_kb";
+
+    /** Binding overriding {@code shell_capture_tail_kb}: trailing characters kept in memory, in units of 1024. */
+    public static final String KEY_CAPTURE_TAIL_KB = SHELL + "capture_tail_kb";
+
+    /**
+     * Binding overriding {@code shell_capture_spill}, false by default: write the characters in between to a
+     * temporary file, without size limit. The file is only deleted by {@link CommandResult#dispose()}.
+     */
+    public static final String KEY_CAPTURE_SPILL = SHELL + "capture_spill";
+
+    /** Binding overriding {@code shell_env}: the environment processes start from, see {@link ShellEnvironment}. */
+    public static final String KEY_ENV = SHELL + "env";
+
+    /** Binding overriding {@code shell_env_whitelist}: variables kept in whitelist mode, comma separated. */
+    public static final String KEY_ENV_WHITELIST = SHELL + "env_whitelist";
+
+    /** Binding overriding {@code shell_timeout}: milliseconds before the process is killed, negative for no timeout. */
+    public static final String KEY_TIMEOUT = SHELL + "timeout";
+
+    /** Binding killing the process at a point in time, in milliseconds since the epoch. */
+    public static final String KEY_DEADLINE = SHELL + "deadline";
+
+    /**
+     * Binding overriding {@code shell_pump}: "thread" to copy output with threads per process, "shared" for {@link StreamPumps}.
+     * Processes streaming their output or with a subscriber bound always get threads of their own.
+     */
+    public static final String KEY_PUMP = SHELL + "pump";
+
+    /**
+     * Binding feeding the stdin of the process: an {@link InputStream}, a {@link ReadableByteChannel},
+     * a {@link File} the process reads directly, a {@link Reader}, or true to
+     * read the reader of the context. Without it the stdin of the process is closed.
+     * The source is not closed, it belongs to the caller: when the process exits before the end
+     * of a source which can not be interrupted, like {@code System.in}, the thread copying it stays
+     * blocked until the source is closed or delivers bytes, see {@link StdinStreamHandler}.
+     */
+    public static final String KEY_STDIN = SHELL + "stdin";
+
+    /**
+     * Binding holding a {@link LineSubscriber} receiving the lines of stdout as they are read.
+     * It throttles the process until it requests lines. The same subscriber may be bound to both streams,
+     * it then gets a single subscription, delivering the lines of both.
+     */
+    public static final String KEY_OUT_SUBSCRIBER = SHELL + "out_subscriber";
+
+    /** Binding holding a {@link LineSubscriber} receiving the lines of stderr as they are read. */
+    public static final String KEY_ERROR_SUBSCRIBER = SHELL + "error_subscriber";
+
+    /**
+     * Binding overriding {@code shell_script_delivery}: "argument", "stdin", "file", or "auto" to pass
+     * scripts longer than {@code shell_script_arg_max} chars on stdin, or in a file when the shell can not
+     * read them from stdin or {@code shell_stdin} is bound.
+     */
+    public static final String KEY_SCRIPT_DELIVERY = SHELL + "script_delivery";
+
+    public static final String DELIVERY_AUTO = "auto";
+
+    public static final String DELIVERY_ARGUMENT = "argument";
+
+    public static final String DELIVERY_STDIN = "stdin";
+
+    public static final String DELIVERY_FILE = "file";
+
+    /**
+     * Binding overriding {@code shell_backend}: "exec" to run processes with commons-exec, "process" to run
+     * them with {@link ProcessExecutor}. Scripts with a redirect other than "pipe" always run with the latter,
+     * scripts on a worker pool never do.
+     */
+    public static final String KEY_BACKEND = SHELL + "backend";
+
+    public static final String BACKEND_EXEC = "exec";
+
+    public static final String BACKEND_PROCESS = "process";
+
+    /**
+     * Binding overriding {@code shell_threads}: "virtual" to copy the streams with virtual threads and
+     * run with {@link ProcessExecutor}, waiting without pinning the carrier, on Java 21 and later;
+     * "platform" otherwise. See {@link ShellThreads}.
+     */
+    public static final String KEY_THREADS = SHELL + "threads";
+
+    /**
+     * Binding overriding {@code shell_spawn}: "helper" to start processes with the {@link SpawnClient spawn helper}
+     * rather than forking this JVM, when the JVM supports Unix domain sockets; "direct" otherwise.
+     * The helper is a second JVM, see {@link SpawnClient} and its {@code shell_spawn_helper_opts} property.
+     * It starts with the first engine when the property is "helper".
+     */
+    public static final String KEY_SPAWN = SHELL + "spawn";
+
+    public static final String SPAWN_DIRECT = "direct";
+
+    public static final String SPAWN_HELPER = "helper";
+
+    /**
+     * Binding overriding {@code shell_cache}: true to take the result from the {@link ShellResultCache},
+     * or share the process of an identical evaluation, for idempotent scripts. Ignored when stdin,
+     * a redirect or a subscriber is bound.
+     */
+    public static final String KEY_CACHE = SHELL + "cache";
+
+    /** Binding overriding {@code shell_cache_ttl}: milliseconds a cached result is reused. */
+    public static final String KEY_CACHE_TTL = SHELL + "cache_ttl";
+
+    /**
+     * Binding overriding {@code shell_bindings_file_threshold}: the bindings taking more characters
+     * once flattened to variables are passed in a {@link BindingsFile} instead of the environment.
+     * Negative, the default, passes all of them in the environment.
+     */
+    public static final String KEY_BINDINGS_FILE_THRESHOLD = SHELL + "bindings_file_threshold";
+
+    /**
+     * Binding sending stdout elsewhere than to the context writer, without reading it in the JVM:
+     * a {@link ProcessBuilder.Redirect}, a {@link File} to overwrite, or "pipe", "discard" or "inherit".
+     */
+    public static final String KEY_OUT_REDIRECT = SHELL + "out_redirect";
+
+    /** Binding sending stderr elsewhere, like {@link #KEY_OUT_REDIRECT}, or "out" to merge it into stdout. */
+    public static final String KEY_ERROR_REDIRECT = SHELL + "error_redirect";
+
+    public static final String REDIRECT_PIPE = "pipe";
+
+    public static final String REDIRECT_DISCARD = "discard";
+
+    public static final String REDIRECT_INHERIT = "inherit";
+
+    public static final String REDIRECT_OUT = "out";
+
     private static final String KEY_CHARSET_COMMAND = SHELL + "charset_command";
 
+    /** the options in the keys of the {@link ShellResultCache}, they change what runs */
+    private static final List<String> KEYED_OPTIONS = Arrays.asList(KEY_ENV, KEY_ENV_WHITELIST, KEY_LANGUAGE, KEY_CHARSET_COMMAND);
+
     private Shell shell;
 
+    private BashWorkerPool workerPool;
+
+    private BashSession session;
+
+    private boolean cancelled;
+
+    private Runnable canceller;
+
     public ShellHandler(Shell shell) {
+        this(shell, (BashWorkerPool) null);
+    }
+
+    public ShellHandler(Shell shell, BashWorkerPool workerPool) {
+        this.shell = shell;
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * @param session runs every script, whatever the bindings asking for stdin or redirects.
+     */
+    ShellHandler(Shell shell, BashSession session) {
         this.shell = shell;
+        this.session = session;
+    }
+
+    static String getCharsetName() {
+        return charsetName;
+    }
+
+    static ShellEnvironment getDefaultEnvironment() {
+        return ShellEnvironment.get(env, envWhitelist);
     }
 
     public String getInstalledVersion() {
         try {
             return runAndGetOutput(shell.getInstalledVersionCommand());
         } catch (Throwable e) {
-            return "Could not determine version";
+            return ShellVersions.UNKNOWN;
         }
     }
 
@@ -47,39 +288,512 @@ public class ShellHandler {
         try {
             return runAndGetOutput(shell.getMajorVersionCommand());
         } catch (Throwable e) {
-            return "Could not determine version";
+            return ShellVersions.UNKNOWN;
+        }
+    }
+
+    /**
+     * Runs {@link Shell#getVersionCommand()} once.
+     *
+     * @return the installed version and the major version of the shell.
+     */
+    public String[] getVersions() {
+        try {
+            String[] lines = runAndGetOutput(shell.getVersionCommand()).split("\n");
+            if (lines.length >= 2) {
+                return new String[]{lines[0].trim(), lines[1].trim()};
+            }
+        } catch (Throwable e) {
+            ;
+        }
+        return new String[]{ShellVersions.UNKNOWN, ShellVersions.UNKNOWN};
+    }
+
+    /**
+     * Runs a script passed as an argument of the shell when it is short enough, else streamed
+     * to its stdin or written to a file, depending on the {@code shell_script_delivery} option.
+     * With {@link Exec} the script is the command line itself, with the bindings substituted.
+     */
+    public CommandResult run(final String command, final ScriptContext scriptContext) throws IOException {
+        final FlatBindings flatBindings = new FlatBindings(scriptContext.getBindings(ScriptContext.ENGINE_SCOPE));
+        if (!useCache(scriptContext.getBindings(ScriptContext.ENGINE_SCOPE))) {
+            return runScript(command, scriptContext, flatBindings);
+        }
+        return cached(command, scriptContext, flatBindings, new Callable<CommandResult>() {
+            @Override
+            public CommandResult call() throws IOException {
+                return runScript(command, scriptContext, flatBindings);
+            }
+        });
+    }
+
+    private CommandResult runScript(String command, ScriptContext scriptContext, FlatBindings flatBindings) throws IOException {
+        Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        ShellTimings timings = new ShellTimings();
+        if (shell instanceof Exec) {
+            return run(command, ((Exec) shell).createByCommand(command, execVariables(bindings, flatBindings)), null, scriptContext, timings, flatBindings);
+        }
+        boolean language = bindings.get(KEY_LANGUAGE) != null && bindings.get(KEY_LANGUAGE).toString().startsWith(".");
+        if (!language && usePool(bindings)) {
+            return run(command, null, null, scriptContext, timings, flatBindings);
+        }
+        String delivery = language ? DELIVERY_FILE : delivery(command.length(), bindings);
+        if (DELIVERY_ARGUMENT.equals(delivery)) {
+            return run(command, shell.createByCommand(command), null, scriptContext, timings, flatBindings);
+        }
+        if (DELIVERY_STDIN.equals(delivery)) {
+            return run(command, shell.createByStdin(), new StringReader(command), scriptContext, timings, flatBindings);
+        }
+        long start = System.nanoTime();
+        ScriptFileCache.ScriptFile scriptFile = acquireScriptFile(command, bindings);
+        timings.add(ShellTimings.Phase.SCRIPT_FILE, System.nanoTime() - start);
+        try {
+            return run(command, shell.createByFile(scriptFile.getFile()), null, scriptContext, timings, flatBindings);
+        } finally {
+            ScriptFileCache.getInstance().release(scriptFile);
+        }
+    }
+
+    /**
+     * Runs a script read from {@code script}. A script longer than {@code shell_script_arg_max}
+     * is streamed to the stdin of the shell as it is read, if it can be delivered that way.
+     */
+    public CommandResult run(Reader script, ScriptContext scriptContext) throws IOException {
+        char[] head = new char[scriptArgMax + 1];
+        int length = 0;
+        int n = 0;
+        while (length < head.length && n != -1) {
+            n = script.read(head, length, head.length - length);
+            length += Math.max(n, 0);
         }
+        Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        boolean language = bindings.get(KEY_LANGUAGE) != null && bindings.get(KEY_LANGUAGE).toString().startsWith(".");
+        if (n == -1 || language || usePool(bindings) || !DELIVERY_STDIN.equals(delivery(Integer.MAX_VALUE, bindings))) {
+            StringBuilder sb = new StringBuilder().append(head, 0, length);
+            if (n != -1) {
+                IOUtil.append(script, sb);
+            }
+            return run(sb.toString(), scriptContext);
+        }
+        PushbackReader rest = new PushbackReader(script, length);
+        rest.unread(head, 0, length);
+        return run(null, shell.createByStdin(), rest, scriptContext, new ShellTimings(), new FlatBindings(bindings));
     }
 
-    public CommandResult run(String command, ScriptContext scriptContext) throws IOException {
+    /**
+     * Runs a script from the file it was compiled to, or on a worker of the pool if there is one.
+     */
+    public CommandResult run(final String command, ScriptFileCache.ScriptFile scriptFile, final ScriptContext scriptContext) throws IOException {
         Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
-        CommandLine commandLine;
-        File temporaryFile = null;
-        if (bindings.get(KEY_LANGUAGE) != null && bindings.get(KEY_LANGUAGE).toString().startsWith(".")) {
-            String fileExtension = bindings.get(KEY_LANGUAGE).toString();
-            temporaryFile = commandAsTemporaryFile(command, fileExtension, (String) bindings.get(KEY_CHARSET_COMMAND));
-            commandLine = shell.createByFile(temporaryFile);
+        final FlatBindings flatBindings = new FlatBindings(bindings);
+        boolean pooled = usePool(bindings);
+        final CommandLine commandLine;
+        if (shell instanceof Exec) {
+            commandLine = ((Exec) shell).createByCommand(command, execVariables(bindings, flatBindings));
         } else {
-            commandLine = shell.createByCommand(command);
-        }
-        Map<String, String> variables = new HashMap<String, String>(System.getenv());
-        Map<String, String> bindingVariables = build(bindings);
-        variables.putAll(bindingVariables);
-        CommandResult commandResult = execute(commandLine, variables);
-        IOUtil.pipe(commandResult.getOutMessage(), scriptContext.getWriter());
-        IOUtil.pipe(commandResult.getErrorMessage(), scriptContext.getErrorWriter());
-        resolveOut(commandResult.getOutMessage(), bindings);
-        if (temporaryFile != null) {
-            temporaryFile.delete();
+            commandLine = pooled ? null : shell.createByFile(scriptFile.getFile());
+        }
+        if (!useCache(bindings)) {
+            return run(command, commandLine, null, scriptContext, new ShellTimings(), flatBindings);
+        }
+        return cached(command, scriptContext, flatBindings, new Callable<CommandResult>() {
+            @Override
+            public CommandResult call() throws IOException {
+                return run(command, commandLine, null, scriptContext, new ShellTimings(), flatBindings);
+            }
+        });
+    }
+
+    /**
+     * Runs {@code evaluation} unless the {@link ShellResultCache} has the result, or an identical
+     * evaluation is running. The output of a result from the cache is written to the writers of
+     * the context and published like the one of a script which ran.
+     * <p>
+     * Evaluations are identified by the script and the bindings, leaving out the
+     * {@value #UNIQUE_SEQUENCE_NO} ones naming the result and the {@code shell_} options, except
+     * the ones changing the environment, the language or the charset of the script.
+     */
+    private CommandResult cached(String command, ScriptContext scriptContext, FlatBindings flatBindings, final Callable<CommandResult> evaluation) throws IOException {
+        Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        Map<String, String> variables = new HashMap<String, String>(flatBindings.variables);
+        for (Iterator<String> names = variables.keySet().iterator(); names.hasNext(); ) {
+            String name = names.next();
+            if (name.startsWith(UNIQUE_SEQUENCE_NO) || name.startsWith(SHELL) && !KEYED_OPTIONS.contains(name)) {
+                names.remove();
+            }
+        }
+        ShellResultCache.Key key = new ShellResultCache.Key(shell.getClass().getName(), command, variables);
+        long ttl = Long.parseLong(option(bindings, KEY_CACHE_TTL, String.valueOf(cacheTtl)));
+        CommandResult commandResult = ShellResultCache.getInstance().get(key, ttl, new Callable<CommandResult>() {
+            @Override
+            public CommandResult call() throws Exception {
+                CommandResult commandResult = evaluation.call();
+                if (isCancelled()) {
+                    // the killed process is not the result the identical evaluations wait for
+                    commandResult.dispose();
+                    throw new CancellationException("The evaluation was cancelled");
+                }
+                return commandResult;
+            }
+        });
+        if (commandResult.isCached()) {
+            if (commandResult.getOutMessage() != null) {
+                IOUtil.pipe(commandResult.getOutMessage(), scriptContext.getWriter());
+            }
+            if (commandResult.getErrorMessage() != null) {
+                IOUtil.pipe(commandResult.getErrorMessage(), scriptContext.getErrorWriter());
+            }
+            resolveOut(commandResult, bindings);
         }
         return commandResult;
     }
 
-    private void resolveOut(String outMessage, Bindings bindings) {
-        if (outMessage != null) {
-            for (final Map.Entry<String, Object> binding : bindings.entrySet()) {
-                if (binding.getKey().startsWith(UNIQUE_SEQUENCE_NO)) {
-                    System.setProperty(binding.getKey(), outMessage.length() > limit ? outMessage.substring(0, limit) : outMessage);
+    /**
+     * @return true if {@code shell_cache} is set and nothing else than the script and the
+     * environment makes the result.
+     */
+    private boolean useCache(Bindings bindings) {
+        return session == null && Boolean.parseBoolean(option(bindings, KEY_CACHE, String.valueOf(cache)))
+                && bindings.get(KEY_STDIN) == null && bindings.get(KEY_OUT_REDIRECT) == null && bindings.get(KEY_ERROR_REDIRECT) == null
+                && bindings.get(KEY_OUT_SUBSCRIBER) == null && bindings.get(KEY_ERROR_SUBSCRIBER) == null;
+    }
+
+    /**
+     * Writes a script to a cached file, named with the {@code shell_language} binding as
+     * extension if there is one, and written in the {@code shell_charset_command} charset.
+     * The file must be released to the {@link ScriptFileCache}.
+     */
+    public ScriptFileCache.ScriptFile acquireScriptFile(String command, Bindings bindings) throws IOException {
+        Object language = bindings.get(KEY_LANGUAGE);
+        String fileExtension = language != null && language.toString().startsWith(".") ? language.toString() : shell.getFileExtension();
+        return ScriptFileCache.getInstance().acquire(command, fileExtension, (String) bindings.get(KEY_CHARSET_COMMAND));
+    }
+
+    /**
+     * Records the timings of the evaluation in {@link ShellMetrics}.
+     *
+     * @param commandLine null to run the script on the worker pool.
+     * @param script written to the stdin of the shell, may be null.
+     */
+    private CommandResult run(String command, CommandLine commandLine, Reader script, ScriptContext scriptContext, ShellTimings timings,
+                              FlatBindings flatBindings) throws IOException {
+        CommandResult commandResult = null;
+        try {
+            commandResult = evaluate(command, commandLine, script, scriptContext, timings, flatBindings);
+            return commandResult;
+        } finally {
+            timings.end();
+            String status = commandResult == null ? ShellMetrics.ERROR : commandResult.getExitValue() == 0 ? ShellMetrics.SUCCESS : ShellMetrics.FAILURE;
+            ShellMetrics.record(shell.getExecutable(), status, timings);
+        }
+    }
+
+    private CommandResult evaluate(String command, CommandLine commandLine, Reader script, ScriptContext scriptContext, ShellTimings timings,
+                                   FlatBindings flatBindings) throws IOException {
+        Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        long start = System.nanoTime();
+        Map<String, String> bindingVariables = flatBindings.variables;
+        String[] environment = null;
+        File bindingsFile = null;
+        if (commandLine != null) {
+            Map<String, String> environmentVariables = bindingVariables;
+            long threshold = Long.parseLong(option(bindings, KEY_BINDINGS_FILE_THRESHOLD, String.valueOf(bindingsFileThreshold)));
+            if (threshold >= 0) {
+                environmentVariables = new HashMap<String, String>(bindingVariables);
+                bindingsFile = writeBindingsFile(flatBindings, threshold, environmentVariables);
+            }
+            environment = ShellEnvironment.get(option(bindings, KEY_ENV, env), option(bindings, KEY_ENV_WHITELIST, envWhitelist)).encode(environmentVariables);
+        }
+        timings.add(ShellTimings.Phase.ENVIRONMENT, System.nanoTime() - start);
+        try {
+            return evaluate(command, commandLine, script, scriptContext, timings, bindingVariables, environment);
+        } finally {
+            if (bindingsFile != null) {
+                bindingsFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Moves the variables of the bindings taking more than {@code threshold} characters from
+     * {@code variables} to a {@link BindingsFile}, and adds the variables pointing to it.
+     *
+     * @return the file, null if no binding is that large.
+     */
+    private File writeBindingsFile(FlatBindings flatBindings, long threshold, Map<String, String> variables) throws IOException {
+        Map<String, String> fileVariables = new LinkedHashMap<String, String>();
+        for (Map<String, String> bindingVariables : flatBindings.byBinding.values()) {
+            if (BindingsFile.size(bindingVariables) > threshold) {
+                variables.keySet().removeAll(bindingVariables.keySet());
+                fileVariables.putAll(bindingVariables);
+            }
+        }
+        if (fileVariables.isEmpty()) {
+            return null;
+        }
+        File file = BindingsFile.write(fileVariables, Charset.defaultCharset());
+        variables.put(BindingsFile.VARIABLE, file.getPath());
+        if (shell instanceof Bash) {
+            variables.put(BindingsFile.HELPER_VARIABLE, BindingsFile.HELPER_DEFINITION);
+        }
+        return file;
+    }
+
+    /**
+     * @param bindingVariables the bindings flattened to variables.
+     * @param environment of the process, null to run the script on a worker.
+     */
+    private CommandResult evaluate(String command, CommandLine commandLine, Reader script, ScriptContext scriptContext, ShellTimings timings,
+                                   Map<String, String> bindingVariables, String[] environment) throws IOException {
+        Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        long start;
+        boolean streaming = Boolean.parseBoolean(option(bindings, KEY_STREAM, String.valueOf(stream)));
+        boolean capture = !streaming || Boolean.parseBoolean(option(bindings, KEY_CAPTURE, "false")) || hasUniqueSequenceNo(bindings)
+                || useCache(bindings);
+        int flushChars = Integer.parseInt(option(bindings, KEY_FLUSH_SIZE, String.valueOf(flushSize)));
+        long flushMillis = Long.parseLong(option(bindings, KEY_FLUSH_INTERVAL_MS, String.valueOf(flushIntervalMs)));
+        int headLimit = Integer.parseInt(option(bindings, KEY_CAPTURE_HEAD_KB, String.valueOf(captureHeadKB))) * 1024;
+        int tailLimit = Integer.parseInt(option(bindings, KEY_CAPTURE_TAIL_KB, String.valueOf(captureTailKB))) * 1024;
+        boolean spill = Boolean.parseBoolean(option(bindings, KEY_CAPTURE_SPILL, String.valueOf(captureSpill)));
+        OutputCapture outCapture = capture ? new OutputCapture(headLimit, tailLimit, spill) : null;
+        OutputCapture errorCapture = new OutputCapture(headLimit, tailLimit, spill);
+        LineSink outSink = outCapture;
+        LineSink errorSink = errorCapture;
+        if (streaming) {
+            outSink = LineSinks.tee(outSink, LineSinks.toWriter(scriptContext.getWriter(), flushChars, flushMillis));
+            errorSink = LineSinks.tee(errorSink, LineSinks.toWriter(scriptContext.getErrorWriter(), flushChars, flushMillis));
+        }
+        long evalTimeout = timeout(bindings);
+        long deadline = evalTimeout < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + evalTimeout;
+        Object outSubscription = bindings.get(KEY_OUT_SUBSCRIBER);
+        Object errorSubscription = bindings.get(KEY_ERROR_SUBSCRIBER);
+        SubscriberSink outSubscriber = subscriberSink(outSubscription, deadline);
+        // a subscriber of both streams has one subscription, complete() and error() only signal it once
+        SubscriberSink errorSubscriber = errorSubscription == outSubscription ? outSubscriber : subscriberSink(errorSubscription, deadline);
+        if (outSubscriber != null) {
+            outSink = LineSinks.tee(outSink, outSubscriber.sink(OutputLine.Stream.STDOUT));
+        }
+        if (errorSubscriber != null) {
+            errorSink = LineSinks.tee(errorSink, errorSubscriber.sink(OutputLine.Stream.STDERR));
+        }
+        OutputStream outOS = timings.watch(new MyLogOutputStream(outSink, charsetName));
+        OutputStream errorOS = timings.watch(new MyLogOutputStream(errorSink, charsetName));
+        int exitValue;
+        try {
+            if (commandLine == null) {
+                exitValue = executeOnWorker(command, bindingVariables, outOS, errorOS, timeout(bindings), timings);
+            } else {
+                Object errorOption = bindings.get(KEY_ERROR_REDIRECT);
+                boolean mergeError = errorOption != null && REDIRECT_OUT.equals(errorOption.toString());
+                ProcessBuilder.Redirect outRedirect = redirect(bindings.get(KEY_OUT_REDIRECT));
+                ProcessBuilder.Redirect errorRedirect = mergeError ? ProcessBuilder.Redirect.PIPE : redirect(errorOption);
+                boolean outPiped = outRedirect.type() == ProcessBuilder.Redirect.Type.PIPE;
+                boolean errorPiped = !mergeError && errorRedirect.type() == ProcessBuilder.Redirect.Type.PIPE;
+                boolean virtual = isVirtual(bindings);
+                boolean processBackend = virtual || mergeError || !outPiped || !errorPiped || BACKEND_PROCESS.equals(option(bindings, KEY_BACKEND, backend));
+                ExecuteStreamHandler streamHandler = streamHandler(bindings, outPiped ? outOS : null, errorPiped ? errorOS : null,
+                        streaming || outSubscriber != null || errorSubscriber != null);
+                Object stdin = bindings.get(KEY_STDIN);
+                File inputFile = null;
+                if (script != null) {
+                    streamHandler = new StdinStreamHandler(streamHandler, new ReaderInputStream(script, commandCharset(bindings)), true, virtual);
+                } else if (stdin instanceof File) {
+                    inputFile = (File) stdin;
+                } else if (stdin != null) {
+                    streamHandler = new StdinStreamHandler(streamHandler, openStdin(stdin, scriptContext), false, virtual);
+                }
+                if (processBackend) {
+                    ProcessExecutor executor = new ProcessExecutor(environment, timings);
+                    executor.setInputFile(inputFile);
+                    executor.setOutput(outRedirect);
+                    executor.setError(errorRedirect);
+                    executor.setMergeError(mergeError);
+                    executor.setSpawnHelper(useSpawnHelper(bindings));
+                    exitValue = execute(executor, commandLine, streamHandler, timeout(bindings));
+                } else {
+                    exitValue = execute(commandLine, environment, streamHandler, timeout(bindings), timings, inputFile, useSpawnHelper(bindings));
+                }
+            }
+        } catch (IOException e) {
+            error(e, outSubscriber, errorSubscriber);
+            throw e;
+        } catch (RuntimeException e) {
+            error(e, outSubscriber, errorSubscriber);
+            throw e;
+        } finally {
+            timings.exited();
+            start = System.nanoTime();
+            IOUtil.closeSilently(outOS);
+            IOUtil.closeSilently(errorOS);
+        }
+        if (outSubscriber != null) {
+            outSubscriber.complete();
+        }
+        if (errorSubscriber != null) {
+            errorSubscriber.complete();
+        }
+        CommandResult commandResult = new CommandResult().setExitValue(exitValue)
+                .setOutCapture(outCapture).setErrorCapture(errorCapture).setTimings(timings);
+        if (!streaming) {
+            IOUtil.pipe(commandResult.getOutReader(), scriptContext.getWriter());
+            IOUtil.pipe(commandResult.getErrorReader(), scriptContext.getErrorWriter());
+        }
+        resolveOut(commandResult, bindings);
+        timings.add(ShellTimings.Phase.OUTPUT, System.nanoTime() - start);
+        return commandResult;
+    }
+
+    /**
+     * Runs scripts one after the other. With bash and no worker pool they all run in one
+     * shell process, each one in a subshell followed by markers splitting its output and
+     * exit value from the next one's. Other shells start a process per script.
+     * <p>
+     * Output is written to the writers of the context once the batch ended, it is not streamed.
+     * The shell process is recorded in {@link ShellMetrics} as one evaluation, its timings are
+     * the ones of every result. Bindings whose names bash cannot hold, like {@code a.b}, are not
+     * exported to the scripts of a single process batch, nor to scripts run on the worker pool.
+     *
+     * @param scriptBindings the bindings of every script, added to the engine bindings of the
+     *                       context; shorter than {@code scripts} or holding nulls for none.
+     * @param failFast stops after the first script exiting with a non zero value.
+     * @return the results of the scripts that ran, in order. A script interrupted by the
+     * timeout has the exit value of the shell.
+     */
+    public List<CommandResult> runBatch(List<String> scripts, List<? extends Map<String, Object>> scriptBindings, ScriptContext scriptContext, boolean failFast) throws IOException {
+        List<ScriptContext> contexts = new ArrayList<ScriptContext>(scripts.size());
+        for (int i = 0; i < scripts.size(); i++) {
+            contexts.add(contextFor(scriptContext, i < scriptBindings.size() ? scriptBindings.get(i) : null));
+        }
+        if (!(shell instanceof Bash) || workerPool != null) {
+            List<CommandResult> commandResults = new ArrayList<CommandResult>(scripts.size());
+            for (int i = 0; i < scripts.size(); i++) {
+                CommandResult commandResult = run(scripts.get(i), contexts.get(i));
+                commandResults.add(commandResult);
+                if (failFast && commandResult.getExitValue() != 0) {
+                    break;
+                }
+            }
+            return commandResults;
+        }
+        ShellTimings timings = new ShellTimings();
+        List<CommandResult> commandResults = null;
+        try {
+            commandResults = runFrames(scripts, scriptBindings, contexts, scriptContext, failFast, timings);
+            return commandResults;
+        } finally {
+            timings.end();
+            String status = commandResults == null ? ShellMetrics.ERROR : ShellMetrics.SUCCESS;
+            if (commandResults != null) {
+                for (CommandResult commandResult : commandResults) {
+                    if (commandResult.getExitValue() != 0) {
+                        status = ShellMetrics.FAILURE;
+                    }
+                }
+            }
+            ShellMetrics.record(shell.getExecutable(), status, timings);
+        }
+    }
+
+    /**
+     * @return a context writing to the writers of {@code scriptContext}, whose engine bindings
+     * are a copy of the ones of {@code scriptContext} with {@code bindings} added.
+     */
+    static ScriptContext contextFor(ScriptContext scriptContext, Map<String, Object> bindings) {
+        Bindings engineBindings = new SimpleBindings(new HashMap<String, Object>(scriptContext.getBindings(ScriptContext.ENGINE_SCOPE)));
+        if (bindings != null) {
+            engineBindings.putAll(bindings);
+        }
+        SimpleScriptContext context = new SimpleScriptContext();
+        context.setWriter(scriptContext.getWriter());
+        context.setErrorWriter(scriptContext.getErrorWriter());
+        context.setReader(scriptContext.getReader());
+        context.setBindings(engineBindings, ScriptContext.ENGINE_SCOPE);
+        return context;
+    }
+
+    /**
+     * @param scriptBindings the bindings of every script, the engine bindings of {@code scriptContext} are
+     *                       flattened once for all the scripts.
+     */
+    private List<CommandResult> runFrames(List<String> scripts, List<? extends Map<String, Object>> scriptBindings, List<ScriptContext> contexts,
+                                          ScriptContext scriptContext, boolean failFast, ShellTimings timings) throws IOException {
+        Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        int headLimit = Integer.parseInt(option(bindings, KEY_CAPTURE_HEAD_KB, String.valueOf(captureHeadKB))) * 1024;
+        int tailLimit = Integer.parseInt(option(bindings, KEY_CAPTURE_TAIL_KB, String.valueOf(captureTailKB))) * 1024;
+        boolean spill = Boolean.parseBoolean(option(bindings, KEY_CAPTURE_SPILL, String.valueOf(captureSpill)));
+        long start = System.nanoTime();
+        String token = UUID.randomUUID().toString().replace("-", "");
+        StringBuilder batch = new StringBuilder();
+        FlatBindings engineBindings = new FlatBindings(bindings);
+        for (int i = 0; i < scripts.size(); i++) {
+            Map<String, Object> frameBindings = i < scriptBindings.size() ? scriptBindings.get(i) : null;
+            BashFrames.appendFrame(batch, scripts.get(i), engineBindings.with(frameBindings), token, failFast);
+        }
+        ShellEnvironment environment = ShellEnvironment.get(option(bindings, KEY_ENV, env), option(bindings, KEY_ENV_WHITELIST, envWhitelist));
+        String[] encoded = environment.encode(Collections.<String, String>emptyMap());
+        timings.add(ShellTimings.Phase.ENVIRONMENT, System.nanoTime() - start);
+        FrameCaptures captures = new FrameCaptures(scripts.size(), headLimit, tailLimit, spill, charsetName);
+        byte[] marker = BashFrames.marker(token).getBytes("US-ASCII");
+        FrameSplitter outFrames = new FrameSplitter(marker, captures, true, new int[scripts.size()]);
+        FrameSplitter errorFrames = new FrameSplitter(marker, captures, false, null);
+        CommandLine commandLine = new CommandLine(shell.getExecutable()).addArgument("-s");
+        InputStream input = new ByteArrayInputStream(batch.toString().getBytes(charsetName == null ? Charset.defaultCharset().name() : charsetName));
+        int exitValue;
+        try {
+            exitValue = execute(commandLine, encoded, new PumpStreamHandler(timings.watch(outFrames), errorFrames, input), timeout(bindings), timings, null, useSpawnHelper(bindings));
+        } finally {
+            timings.exited();
+            captures.close();
+        }
+        start = System.nanoTime();
+        int ran = outFrames.getFrameCount();
+        if (exitValue != 0 && ran < scripts.size()) {
+            // the shell was killed during this script
+            outFrames.getExitValues()[ran++] = exitValue;
+        }
+        List<CommandResult> commandResults = new ArrayList<CommandResult>(ran);
+        for (int i = 0; i < scripts.size(); i++) {
+            if (i < ran) {
+                CommandResult commandResult = new CommandResult().setExitValue(outFrames.getExitValues()[i])
+                        .setOutCapture(captures.out(i)).setErrorCapture(captures.error(i)).setTimings(timings);
+                IOUtil.pipe(commandResult.getOutReader(), scriptContext.getWriter());
+                IOUtil.pipe(commandResult.getErrorReader(), scriptContext.getErrorWriter());
+                resolveOut(commandResult, contexts.get(i).getBindings(ScriptContext.ENGINE_SCOPE));
+                commandResults.add(commandResult);
+            } else {
+                captures.dispose(i);
+            }
+        }
+        timings.add(ShellTimings.Phase.OUTPUT, System.nanoTime() - start);
+        return commandResults;
+    }
+
+    private boolean hasUniqueSequenceNo(Bindings bindings) {
+        for (String key : bindings.keySet()) {
+            if (key.startsWith(UNIQUE_SEQUENCE_NO)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Publishes the head of stdout to {@link ShellResults} under every {@code unique_sequence_no_}
+     * binding, and as a system property too when {@code shell_result_system_property} is set.
+     */
+    private void resolveOut(CommandResult commandResult, Bindings bindings) {
+        String out = null;
+        for (final Map.Entry<String, Object> binding : bindings.entrySet()) {
+            if (binding.getKey().startsWith(UNIQUE_SEQUENCE_NO)) {
+                if (out == null) {
+                    out = commandResult.getOutHead(limit);
+                    if (out == null) {
+                        return;
+                    }
+                }
+                ShellResults.getInstance().put(binding.getKey(), out);
+                if (resultSystemProperty) {
+                    System.setProperty(binding.getKey(), out);
                 }
             }
         }
@@ -87,88 +801,478 @@ public class ShellHandler {
 
     private String runAndGetOutput(String command) throws IOException {
         CommandLine commandLine = shell.createByCommand(command);
-        CommandResult commandResult = execute(commandLine, null);
-        return commandResult.getOutMessage();
+        StringBuilder outSB = new StringBuilder();
+        OutputStream outOS = new MyLogOutputStream(outSB, charsetName);
+        OutputStream errorOS = new MyLogOutputStream(new StringBuilder(), charsetName);
+        try {
+            execute(commandLine, null, new PumpStreamHandler(outOS, errorOS), timeout, null, null, false);
+        } finally {
+            IOUtil.closeSilently(outOS);
+            IOUtil.closeSilently(errorOS);
+        }
+        return outSB.toString();
     }
 
-    private CommandResult execute(CommandLine commandLine, Map<String, String> environment) throws IOException {
-        DefaultExecutor executor = new DefaultExecutor();
-        ExecuteWatchdog watchdog = new ExecuteWatchdog(timeout);
+    /**
+     * @param environment {@code NAME=value} entries, null to inherit the JVM environment.
+     * @param timings receives the time spent starting the process, may be null.
+     * @param inputFile the process reads its stdin from, may be null.
+     * @param spawnHelper starts the process with the spawn helper.
+     */
+    private int execute(CommandLine commandLine, String[] environment, ExecuteStreamHandler streamHandler, long timeout, ShellTimings timings, File inputFile, boolean spawnHelper) throws IOException {
+        ShellExecutor executor = new ShellExecutor(environment, timings);
+        executor.setInputFile(inputFile);
+        executor.setSpawnHelper(spawnHelper);
+        ScheduledWatchdog watchdog = watchdog(timeout);
         executor.setWatchdog(watchdog);
         executor.setExitValues(null);
-        final StringBuilder outSB = new StringBuilder();
-        final StringBuilder errorSB = new StringBuilder();
-        OutputStream outOS = null;
-        OutputStream errorOS = null;
+        executor.setStreamHandler(streamHandler);
         try {
-            outOS = new MyLogOutputStream(outSB, charsetName);
-            errorOS = new MyLogOutputStream(errorSB, charsetName);
-            PumpStreamHandler streamHandler = new PumpStreamHandler(outOS, errorOS);
-            executor.setStreamHandler(streamHandler);
+            int exitValue = executor.execute(commandLine);
+            watchdog.destroyProcess();
+            return exitValue;
         } finally {
-            IOUtil.closeSilently(outOS);
-            IOUtil.closeSilently(errorOS);
+            setCanceller(null);
         }
-        int exitValue = executor.execute(commandLine, environment);
-        watchdog.destroyProcess();
-        return new CommandResult().setExitValue(exitValue).setOutMessage(outSB.toString()).setErrorMessage(errorSB.toString());
     }
 
-    private Map<String, String> build(Map<String, Object> engineScopeMap) {
-        Map<String, String> map = new HashMap<String, String>();
-        for (Map.Entry<String, Object> binding : engineScopeMap.entrySet()) {
-            String bindingKey = binding.getKey();
-            Object bindingValue = binding.getValue();
+    private int execute(ProcessExecutor executor, CommandLine commandLine, ExecuteStreamHandler streamHandler, long timeout) throws IOException {
+        executor.setWatchdog(watchdog(timeout));
+        executor.setStreamHandler(streamHandler);
+        try {
+            return executor.execute(commandLine);
+        } finally {
+            setCanceller(null);
+        }
+    }
 
-            if (bindingValue instanceof Object[]) {
-                addArrayBindingAsEnvironmentVariable(bindingKey, (Object[]) bindingValue, map);
-            } else if (bindingValue instanceof Collection) {
-                addCollectionBindingAsEnvironmentVariable(bindingKey, (Collection) bindingValue, map);
-            } else if (bindingValue instanceof Map) {
-                addMapBindingAsEnvironmentVariable(bindingKey, (Map<?, ?>) bindingValue, map);
-            } else {
-                map.put(bindingKey, toEmpty(binding.getValue()));
+    /**
+     * @return a watchdog killing the process after {@code timeout} milliseconds, or when the evaluation is cancelled.
+     */
+    private ScheduledWatchdog watchdog(long timeout) {
+        final ScheduledWatchdog watchdog = new ScheduledWatchdog(timeout);
+        setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                watchdog.kill();
             }
+        });
+        return watchdog;
+    }
+
+    /**
+     * @param redirect a {@link ProcessBuilder.Redirect}, a {@link File}, the name of a redirect, or null for a pipe.
+     */
+    private static ProcessBuilder.Redirect redirect(Object redirect) {
+        if (redirect == null || REDIRECT_PIPE.equals(redirect.toString())) {
+            return ProcessBuilder.Redirect.PIPE;
+        }
+        if (redirect instanceof ProcessBuilder.Redirect) {
+            return (ProcessBuilder.Redirect) redirect;
+        }
+        if (redirect instanceof File) {
+            return ProcessBuilder.Redirect.to((File) redirect);
+        }
+        if (REDIRECT_DISCARD.equals(redirect.toString())) {
+            return ProcessSupport.discard();
+        }
+        if (REDIRECT_INHERIT.equals(redirect.toString())) {
+            return ProcessBuilder.Redirect.INHERIT;
+        }
+        throw new IllegalArgumentException("Unsupported redirect: " + redirect);
+    }
+
+    /**
+     * @param subscriber a {@link LineSubscriber}, or null.
+     */
+    private static SubscriberSink subscriberSink(Object subscriber, long deadline) {
+        return subscriber == null ? null : new SubscriberSink((LineSubscriber) subscriber, deadline);
+    }
+
+    private static void error(Throwable cause, SubscriberSink... subscribers) {
+        for (SubscriberSink subscriber : subscribers) {
+            if (subscriber != null) {
+                subscriber.error(cause);
+            }
+        }
+    }
+
+    /**
+     * @return true to run the script on the session or a worker of the pool, they have no stdin and their output is piped.
+     */
+    private boolean usePool(Bindings bindings) {
+        return session != null || workerPool != null && bindings.get(KEY_STDIN) == null
+                && bindings.get(KEY_OUT_REDIRECT) == null && bindings.get(KEY_ERROR_REDIRECT) == null;
+    }
+
+    /**
+     * @param stdin an {@link InputStream}, a {@link ReadableByteChannel}, a {@link Reader} encoded in the {@code shell_charset_command} charset, or true for the reader of the context.
+     */
+    private InputStream openStdin(Object stdin, ScriptContext scriptContext) throws IOException {
+        if (stdin instanceof InputStream) {
+            return (InputStream) stdin;
+        }
+        if (stdin instanceof ReadableByteChannel) {
+            return Channels.newInputStream((ReadableByteChannel) stdin);
+        }
+        Reader reader;
+        if (stdin instanceof Reader) {
+            reader = (Reader) stdin;
+        } else if (Boolean.parseBoolean(stdin.toString())) {
+            reader = scriptContext.getReader();
+        } else {
+            throw new IllegalArgumentException("Unsupported " + KEY_STDIN + ": " + stdin.getClass().getName());
         }
-        return map;
+        return new ReaderInputStream(reader, commandCharset(scriptContext.getBindings(ScriptContext.ENGINE_SCOPE)));
+    }
+
+    /**
+     * @return the {@code shell_charset_command} charset, the one of the output by default.
+     */
+    private Charset commandCharset(Bindings bindings) {
+        String charset = option(bindings, KEY_CHARSET_COMMAND, null);
+        return charset == null ? getCommandCharset() : Charset.forName(charset);
+    }
+
+    /**
+     * @return the charset scripts are encoded in without a {@code shell_charset_command} binding.
+     */
+    public static Charset getCommandCharset() {
+        return charsetName == null ? Charset.defaultCharset() : Charset.forName(charsetName);
     }
 
-    private void addMapBindingAsEnvironmentVariable(String bindingKey, Map<?, ?> bindingValue, Map<String, String> environment) {
-        for (Map.Entry<?, ?> entry : ((Map<?, ?>) bindingValue).entrySet()) {
-            environment.put(bindingKey + "_" + entry.getKey(), (entry.getValue() == null ? "" : toEmpty(entry.getValue())));
+    /**
+     * @return the variables {@link Exec} substitutes: the environment the process gets, with the
+     * bindings on top, so variables left out by {@code shell_env} are not substituted either.
+     */
+    private Map<String, String> execVariables(Bindings bindings, FlatBindings flatBindings) {
+        Map<String, String> variables = new HashMap<String, String>(ShellEnvironment.get(option(bindings, KEY_ENV, env),
+                option(bindings, KEY_ENV_WHITELIST, envWhitelist)).getVariables());
+        variables.putAll(flatBindings.variables);
+        return variables;
+    }
+
+    /**
+     * @param length of the script in characters.
+     * @return how to pass the script to the shell: as an argument, on stdin or in a file.
+     */
+    private String delivery(int length, Bindings bindings) {
+        String delivery = option(bindings, KEY_SCRIPT_DELIVERY, scriptDelivery);
+        boolean stdinFree = shell.createByStdin() != null && bindings.get(KEY_STDIN) == null;
+        if (DELIVERY_AUTO.equals(delivery)) {
+            return length <= scriptArgMax ? DELIVERY_ARGUMENT : stdinFree ? DELIVERY_STDIN : DELIVERY_FILE;
         }
+        return DELIVERY_STDIN.equals(delivery) && !stdinFree ? DELIVERY_FILE : delivery;
     }
 
-    private void addCollectionBindingAsEnvironmentVariable(String bindingKey, Collection bindingValue, Map<String, String> environment) {
-        Object[] bindingValueAsArray = bindingValue.toArray();
-        addArrayBindingAsEnvironmentVariable(bindingKey, bindingValueAsArray, environment);
+    /**
+     * Copies the output with threads of the process, virtual ones with {@code shell_threads} "virtual",
+     * or with {@link StreamPumps} when the {@code shell_pump} option is "shared".
+     *
+     * @param blocking the output goes to sinks which may block: a subscriber waiting for demand or
+     *                 the writers of the context when streaming. Blocking would hold a shared pump and
+     *                 stall the other processes, so the process gets threads of its own.
+     */
+    private static ExecuteStreamHandler streamHandler(Bindings bindings, OutputStream outOS, OutputStream errorOS, boolean blocking) {
+        if (!blocking && SHARED_PUMPS.equals(option(bindings, KEY_PUMP, pump))) {
+            return new SharedPumpStreamHandler(outOS, errorOS);
+        }
+        if (isVirtual(bindings)) {
+            return new VirtualPumpStreamHandler(outOS, errorOS);
+        }
+        return new PumpStreamHandler(outOS, errorOS);
     }
 
-    private void addArrayBindingAsEnvironmentVariable(String bindingKey, Object[] bindingValue, Map<String, String> environment) {
-        for (int i = 0; i < bindingValue.length; i++) {
-            environment.put(bindingKey + "_" + i, (bindingValue[i] == null ? "" : toEmpty(bindingValue[i].toString())));
+    /**
+     * @return true if {@code shell_spawn} is "helper" and the JVM supports Unix domain sockets.
+     */
+    private static boolean useSpawnHelper(Bindings bindings) {
+        return SPAWN_HELPER.equals(option(bindings, KEY_SPAWN, spawn)) && SpawnClient.isSupported();
+    }
+
+    /**
+     * Starts the spawn helper if the {@code shell_spawn} property is "helper", so the first
+     * evaluation does not wait for it.
+     */
+    static void startSpawnHelper() {
+        if (SPAWN_HELPER.equals(spawn) && SpawnClient.isSupported()) {
+            try {
+                SpawnClient.getInstance();
+            } catch (IOException e) {
+                ;
+            }
         }
     }
 
-    private File commandAsTemporaryFile(String command, String fileExtension, String commandCharset) {
-        PrintWriter pw = null;
+    /**
+     * @return true if {@code shell_threads} is "virtual" and the JVM supports virtual threads.
+     */
+    static boolean isVirtual(Map<String, Object> bindings) {
+        return ShellThreads.isVirtual(option(bindings, KEY_THREADS, threads));
+    }
+
+    private int executeOnWorker(String command, Map<String, String> variables, OutputStream outOS, OutputStream errorOS, long timeout, ShellTimings timings) throws IOException {
+        long start = System.nanoTime();
+        final BashWorker worker = session != null ? session : workerPool.borrow();
+        timings.launched(System.nanoTime() - start);
         try {
-            File commandAsFile = File.createTempFile(SHELL, fileExtension);
-            pw = commandCharset == null ? new PrintWriter(commandAsFile) :
-                    new PrintWriter(new OutputStreamWriter(new FileOutputStream(commandAsFile), commandCharset));
-            pw.print(command);
-            pw.flush();
-            return commandAsFile;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            setCanceller(new Runnable() {
+                @Override
+                public void run() {
+                    worker.destroy();
+                }
+            });
+            return worker.execute(command, variables, outOS, errorOS, timeout);
         } finally {
-            if (pw != null) {
-                pw.close();
+            setCanceller(null);
+            if (session == null) {
+                workerPool.release(worker);
             }
         }
     }
 
-    private String toEmpty(Object value) {
+    private synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Destroys the process running the script, from any thread.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (canceller != null) {
+            canceller.run();
+        }
+    }
+
+    /**
+     * @param canceller destroying the process about to run, run now if the evaluation is cancelled.
+     */
+    private synchronized void setCanceller(Runnable canceller) {
+        this.canceller = canceller;
+        if (cancelled && canceller != null) {
+            canceller.run();
+        }
+    }
+
+    /**
+     * @return the {@code shell_timeout} binding or property, shortened to end at the
+     * {@code shell_deadline} binding, in milliseconds since the epoch, if there is one.
+     * Negative when there is neither a timeout nor a deadline, 0 once the deadline passed.
+     */
+    static long timeout(Bindings bindings) {
+        long evalTimeout = Long.parseLong(option(bindings, KEY_TIMEOUT, String.valueOf(timeout)));
+        Object deadline = bindings.get(KEY_DEADLINE);
+        if (deadline != null) {
+            long remaining = Math.max(Long.parseLong(deadline.toString()) - System.currentTimeMillis(), 0);
+            evalTimeout = evalTimeout < 0 ? remaining : Math.min(evalTimeout, remaining);
+        }
+        return evalTimeout;
+    }
+
+    /**
+     * Reads an option from the bindings, falling back to {@code defaultValue}.
+     */
+    static String option(Map<String, Object> bindings, String key, String defaultValue) {
+        Object value = bindings.get(key);
+        return value == null ? defaultValue : value.toString();
+    }
+
+    /**
+     * Bindings flattened to variables, once per evaluation: a variable per element of arrays,
+     * collections and maps, named after the binding and the index or key of the element,
+     * recursively for nested ones. A container nested in itself is left out where it repeats.
+     */
+    private static final class FlatBindings {
+
+        /** the variables of every binding, by name of the binding */
+        final Map<String, Map<String, String>> byBinding = new LinkedHashMap<String, Map<String, String>>();
+
+        /** the variables of all the bindings */
+        final Map<String, String> variables = new HashMap<String, String>();
+
+        FlatBindings(Map<String, Object> bindings) {
+            for (Map.Entry<String, Object> binding : bindings.entrySet()) {
+                Map<String, String> bindingVariables = new LinkedHashMap<String, String>();
+                flatten(binding.getKey(), binding.getValue(), bindingVariables, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+                byBinding.put(binding.getKey(), bindingVariables);
+                variables.putAll(bindingVariables);
+            }
+        }
+
+        /**
+         * @param bindings replacing the ones of the same name, may be null.
+         * @return the variables with {@code bindings} added, only those are flattened.
+         */
+        Map<String, String> with(Map<String, Object> bindings) {
+            if (bindings == null || bindings.isEmpty()) {
+                return variables;
+            }
+            FlatBindings added = new FlatBindings(bindings);
+            Map<String, String> merged = new HashMap<String, String>();
+            for (Map.Entry<String, Map<String, String>> binding : byBinding.entrySet()) {
+                if (!bindings.containsKey(binding.getKey())) {
+                    merged.putAll(binding.getValue());
+                }
+            }
+            merged.putAll(added.variables);
+            return merged;
+        }
+    }
+
+    /**
+     * @param containers the ones {@code value} is nested in.
+     */
+    private static void flatten(String name, Object value, Map<String, String> variables, Set<Object> containers) {
+        boolean container = value instanceof Collection || value instanceof Object[] || value instanceof Map;
+        if (container && !containers.add(value)) {
+            return;
+        }
+        Object elements = value instanceof Collection ? ((Collection<?>) value).toArray() : value;
+        if (elements instanceof Object[]) {
+            Object[] array = (Object[]) elements;
+            for (int i = 0; i < array.length; i++) {
+                flatten(name + "_" + i, array[i], variables, containers);
+            }
+        } else if (elements instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) elements).entrySet()) {
+                flatten(name + "_" + entry.getKey(), entry.getValue(), variables, containers);
+            }
+        } else {
+            variables.put(name, toEmpty(value));
+        }
+        if (container) {
+            containers.remove(value);
+        }
+    }
+
+    private static String toEmpty(Object value) {
         return value == null ? "" : value.toString();
     }
+
+    /**
+     * Sends every frame of a batch to its own stream.
+     */
+    private static class FrameSplitter extends FramedOutputStream {
+
+        private final FrameCaptures captures;
+
+        private final boolean out;
+
+        private final int[] exitValues;
+
+        private int frame;
+
+        /**
+         * @param out splits stdout, else stderr.
+         * @param exitValues filled with the trailers of the frames, null to ignore them.
+         */
+        FrameSplitter(byte[] marker, FrameCaptures captures, boolean out, int[] exitValues) {
+            super(marker);
+            this.captures = captures;
+            this.out = out;
+            this.exitValues = exitValues;
+            setTarget(captures.stream(0, out));
+        }
+
+        @Override
+        protected synchronized void frameEnd(String trailer) {
+            if (exitValues != null && frame < exitValues.length) {
+                exitValues[frame] = Integer.parseInt(trailer.trim());
+            }
+            frame++;
+            setTarget(captures.stream(frame, out));
+        }
+
+        synchronized int getFrameCount() {
+            return Math.min(frame, captures.size());
+        }
+
+        int[] getExitValues() {
+            return exitValues;
+        }
+    }
+
+    /**
+     * The captures of the frames of a batch, created when the output of their frame starts.
+     */
+    private static class FrameCaptures {
+
+        private final OutputCapture[] outCaptures;
+
+        private final OutputCapture[] errorCaptures;
+
+        private final OutputStream[] outStreams;
+
+        private final OutputStream[] errorStreams;
+
+        private final int headLimit;
+
+        private final int tailLimit;
+
+        private final boolean spill;
+
+        private final String charsetName;
+
+        FrameCaptures(int size, int headLimit, int tailLimit, boolean spill, String charsetName) {
+            this.outCaptures = new OutputCapture[size];
+            this.errorCaptures = new OutputCapture[size];
+            this.outStreams = new OutputStream[size];
+            this.errorStreams = new OutputStream[size];
+            this.headLimit = headLimit;
+            this.tailLimit = tailLimit;
+            this.spill = spill;
+            this.charsetName = charsetName;
+        }
+
+        int size() {
+            return outCaptures.length;
+        }
+
+        /**
+         * @return the stream of the frame, null past the last one.
+         */
+        synchronized OutputStream stream(int frame, boolean out) {
+            if (frame >= size()) {
+                return null;
+            }
+            create(frame);
+            return out ? outStreams[frame] : errorStreams[frame];
+        }
+
+        synchronized OutputCapture out(int frame) {
+            create(frame);
+            return outCaptures[frame];
+        }
+
+        synchronized OutputCapture error(int frame) {
+            create(frame);
+            return errorCaptures[frame];
+        }
+
+        synchronized void dispose(int frame) {
+            if (outCaptures[frame] != null) {
+                outCaptures[frame].dispose();
+                errorCaptures[frame].dispose();
+            }
+        }
+
+        synchronized void close() {
+            for (int i = 0; i < size(); i++) {
+                if (outStreams[i] != null) {
+                    IOUtil.closeSilently(outStreams[i]);
+                    IOUtil.closeSilently(errorStreams[i]);
+                }
+            }
+        }
+
+        private void create(int frame) {
+            if (outCaptures[frame] == null) {
+                outCaptures[frame] = new OutputCapture(headLimit, tailLimit, spill);
+                errorCaptures[frame] = new OutputCapture(headLimit, tailLimit, spill);
+                outStreams[frame] = new MyLogOutputStream(outCaptures[frame], charsetName);
+                errorStreams[frame] = new MyLogOutputStream(errorCaptures[frame], charsetName);
+            }
+        }
+    }
 }
@@ -0,0 +1,182 @@
+package jsr223.shell;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts evaluations and the durations of their phases per shell and status, and exposes
+ * them as MBeans named {@code jsr223.shell:type=ShellMetrics,shell=<shell>,status=<status>}
+ * unless {@code shell_jmx} is false.
+ * <p>
+ * Every MBean has a {@code Count} attribute and, for each {@link ShellTimings.Phase},
+ * {@code <Phase>P50}, {@code <Phase>P99} and {@code <Phase>P999} attributes in milliseconds,
+ * like {@code SpawnP99}.
+ */
+public final class ShellMetrics {
+
+    /** The script exited with 0. */
+    public static final String SUCCESS = "success";
+
+    /** The script exited with another value. */
+    public static final String FAILURE = "failure";
+
+    /** The script could not be run. */
+    public static final String ERROR = "error";
+
+    private static final String DOMAIN = "jsr223.shell";
+
+    private static final boolean jmx = Boolean.parseBoolean(System.getProperty(ShellHandler.SHELL + "jmx", "true"));
+
+    private static final ConcurrentMap<String, EvalMetrics> metrics = new ConcurrentHashMap<String, EvalMetrics>();
+
+    private ShellMetrics() {
+    }
+
+    /**
+     * @return the metrics of the evaluations of {@code shell} ending with {@code status}, null if there was none.
+     */
+    public static EvalMetrics get(String shell, String status) {
+        return metrics.get(shell + "/" + status);
+    }
+
+    static void record(String shell, String status, ShellTimings timings) {
+        String key = shell + "/" + status;
+        EvalMetrics evalMetrics = metrics.get(key);
+        if (evalMetrics == null) {
+            EvalMetrics created = new EvalMetrics();
+            evalMetrics = metrics.putIfAbsent(key, created);
+            if (evalMetrics == null) {
+                evalMetrics = created;
+                register(shell, status, created);
+            }
+        }
+        evalMetrics.record(timings);
+    }
+
+    private static void register(String shell, String status, EvalMetrics evalMetrics) {
+        if (!jmx) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=ShellMetrics,shell=" + ObjectName.quote(shell) + ",status=" + status);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(evalMetrics, name);
+            }
+        } catch (JMException e) {
+            // another class loader registered it first
+        } catch (SecurityException e) {
+            ;
+        }
+    }
+
+    /**
+     * The evaluations of a shell ending with a status.
+     */
+    public static class EvalMetrics implements DynamicMBean {
+
+        private static final String[] PERCENTILES = {"P50", "P99", "P999"};
+
+        private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final LatencyHistogram[] histograms = new LatencyHistogram[ShellTimings.Phase.values().length];
+
+        EvalMetrics() {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        void record(ShellTimings timings) {
+            count.incrementAndGet();
+            for (ShellTimings.Phase phase : ShellTimings.Phase.values()) {
+                if (timings.isTimed(phase)) {
+                    histograms[phase.ordinal()].record(timings.getNanos(phase));
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return in nanoseconds, over the evaluations that went through {@code phase}.
+         */
+        public long percentile(ShellTimings.Phase phase, double quantile) {
+            return histograms[phase.ordinal()].percentile(quantile);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if ("Count".equals(attribute)) {
+                return getCount();
+            }
+            for (ShellTimings.Phase phase : ShellTimings.Phase.values()) {
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    if (attribute.equals(attributeName(phase, PERCENTILES[i]))) {
+                        return percentile(phase, QUANTILES[i]) / 1000000.0;
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    ;
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            attributes.add(new MBeanAttributeInfo("Count", "long", "Number of evaluations", true, false, false));
+            for (ShellTimings.Phase phase : ShellTimings.Phase.values()) {
+                for (String percentile : PERCENTILES) {
+                    attributes.add(new MBeanAttributeInfo(attributeName(phase, percentile), "double",
+                            percentile + " of the " + phase.name().toLowerCase() + " phase in milliseconds", true, false, false));
+                }
+            }
+            return new MBeanInfo(getClass().getName(), "Evaluations of a shell ending with a status",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+
+        private static String attributeName(ShellTimings.Phase phase, String percentile) {
+            StringBuilder sb = new StringBuilder();
+            for (String word : phase.name().split("_")) {
+                sb.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+            }
+            return sb.append(percentile).toString();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package jsr223.shell;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of idempotent scripts, reused while they are fresh, for evaluations with the
+ * {@code shell_cache} binding. Evaluations of the same script with the same bindings and shell
+ * running at the same time share one process.
+ * <p>
+ * At most {@code shell_cache_size} results are kept, the least recently used ones are evicted
+ * first. Only the results of scripts exiting with 0 are kept, a failure is only shared with the
+ * evaluations waiting for it. The output is kept as text, a result whose output was truncated is
+ * not kept either: the evaluations waiting for it only get its head and tail.
+ */
+public class ShellResultCache {
+
+    private static final ShellResultCache INSTANCE = new ShellResultCache(
+            Integer.parseInt(System.getProperty(ShellHandler.SHELL + "cache_size", "1000")));
+
+    private final int maxSize;
+
+    private final Map<Key, Entry> entries;
+
+    private final ConcurrentHashMap<Key, FutureTask<Entry>> running = new ConcurrentHashMap<Key, FutureTask<Entry>>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong shared = new AtomicLong();
+
+    public ShellResultCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ShellResultCache.Entry> eldest) {
+                return size() > ShellResultCache.this.maxSize;
+            }
+        };
+    }
+
+    public static ShellResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cached result of {@code key}, or waits for the evaluation of {@code key} already
+     * running, or runs {@code evaluation}. Only the latter returns the result of the evaluation
+     * itself, the others return a {@link CommandResult#isCached() copy} holding the output as text.
+     * An evaluation throwing a {@link CancellationException} is not shared: the evaluations waiting
+     * for it start over, one of them running {@code evaluation} again.
+     *
+     * @param ttl in milliseconds, how long the result is kept.
+     */
+    public CommandResult get(Key key, final long ttl, final Callable<CommandResult> evaluation) throws IOException {
+        while (true) {
+            Entry entry = lookup(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.copy();
+            }
+            final CommandResult[] commandResult = new CommandResult[1];
+            // the output is read before the waiting evaluations are released, the result may be disposed then
+            FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    commandResult[0] = evaluation.call();
+                    return new Entry(commandResult[0], System.currentTimeMillis() + ttl);
+                }
+            });
+            FutureTask<Entry> leader = running.putIfAbsent(key, task);
+            if (leader == null) {
+                misses.incrementAndGet();
+                try {
+                    task.run();
+                    entry = await(task);
+                    if (entry.exitValue == 0 && entry.complete && ttl > 0) {
+                        synchronized (entries) {
+                            entries.put(key, entry);
+                        }
+                    }
+                    return commandResult[0];
+                } finally {
+                    running.remove(key, task);
+                }
+            }
+            shared.incrementAndGet();
+            try {
+                return await(leader).copy();
+            } catch (CancellationException e) {
+                // the result of the cancelled evaluation is not the one of this evaluation
+                running.remove(key, leader);
+            }
+        }
+    }
+
+    /**
+     * @return the number of evaluations answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of evaluations which ran a process.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of evaluations which waited for the process of an identical one.
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private Entry lookup(Key key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                entries.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    private static Entry await(FutureTask<Entry> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an identical evaluation");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Identifies evaluations: the shell, the script and the environment variables the bindings
+     * are exported to.
+     */
+    public static final class Key {
+
+        private final String shell;
+
+        private final String script;
+
+        private final Map<String, String> variables;
+
+        private final int hash;
+
+        public Key(String shell, String script, Map<String, String> variables) {
+            this.shell = shell;
+            this.script = script;
+            this.variables = variables;
+            this.hash = (shell.hashCode() * 31 + script.hashCode()) * 31 + variables.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && shell.equals(key.shell) && script.equals(key.script) && variables.equals(key.variables);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Entry {
+
+        final int exitValue;
+
+        final String outMessage;
+
+        final String errorMessage;
+
+        final ShellTimings timings;
+
+        /** the whole output was captured */
+        final boolean complete;
+
+        final long expiresAt;
+
+        Entry(CommandResult commandResult, long expiresAt) {
+            this.exitValue = commandResult.getExitValue();
+            this.outMessage = commandResult.getOutMessage();
+            this.errorMessage = commandResult.getErrorMessage();
+            this.timings = commandResult.getTimings();
+            this.complete = commandResult.getTruncatedOutLength() == 0 && commandResult.getTruncatedErrorLength() == 0;
+            this.expiresAt = expiresAt;
+        }
+
+        CommandResult copy() {
+            return new CommandResult().setExitValue(exitValue).setOutMessage(outMessage)
+                    .setErrorMessage(errorMessage).setTimings(timings).setCached(true);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package jsr223.shell;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stdout of evaluations run with a {@code unique_sequence_no_} binding, kept under the
+ * name of the binding, at most {@code shell_stdout_limit} characters of it.
+ * <p>
+ * At most {@code shell_result_store_size} results are kept, for {@code shell_result_ttl}
+ * milliseconds; the oldest ones are evicted first. Results can be polled or received by a
+ * {@link ResultListener}.
+ */
+public class ShellResults {
+
+    private static final ShellResults INSTANCE = new ShellResults(
+            Integer.parseInt(System.getProperty(ShellHandler.SHELL + "result_store_size", "10000")),
+            Long.parseLong(System.getProperty(ShellHandler.SHELL + "result_ttl", "3600000")));
+
+    private final int maxSize;
+
+    private final long ttl;
+
+    private final ConcurrentHashMap<String, Result> results = new ConcurrentHashMap<String, Result>();
+
+    /** in the order results were published, so also the order they expire */
+    private final ConcurrentLinkedQueue<Result> order = new ConcurrentLinkedQueue<Result>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** entries of {@code order}, removed results included until they reach its head */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final List<ResultListener> listeners = new CopyOnWriteArrayList<ResultListener>();
+
+    /**
+     * @param ttl in milliseconds.
+     */
+    public ShellResults(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    public static ShellResults getInstance() {
+        return INSTANCE;
+    }
+
+    public void put(String key, String output) {
+        Result result = new Result(key, output, System.currentTimeMillis() + ttl);
+        Result replaced = results.put(key, result);
+        if (replaced == null) {
+            size.incrementAndGet();
+        }
+        order.offer(result);
+        queued.incrementAndGet();
+        evict();
+        for (ResultListener listener : listeners) {
+            listener.published(key, output);
+        }
+    }
+
+    /**
+     * @return the output published under {@code key}, null if there is none or it expired.
+     */
+    public String get(String key) {
+        Result result = results.get(key);
+        if (result == null || result.expired(System.currentTimeMillis())) {
+            return null;
+        }
+        return result.output;
+    }
+
+    /**
+     * @return the output published under {@code key}, no longer kept, null if there is none or it expired.
+     */
+    public String remove(String key) {
+        Result result = results.remove(key);
+        if (result == null) {
+            return null;
+        }
+        size.decrementAndGet();
+        return result.expired(System.currentTimeMillis()) ? null : result.output;
+    }
+
+    public int size() {
+        evict();
+        return size.get();
+    }
+
+    public void clear() {
+        for (String key : results.keySet()) {
+            remove(key);
+        }
+        evict();
+    }
+
+    public void addListener(ResultListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ResultListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Result oldest = order.peek();
+        while (oldest != null && (size.get() > maxSize || queued.get() > 2 * maxSize
+                || oldest.expired(now) || results.get(oldest.key) != oldest)) {
+            if (order.remove(oldest)) {
+                queued.decrementAndGet();
+                if (results.remove(oldest.key, oldest)) {
+                    size.decrementAndGet();
+                }
+            }
+            oldest = order.peek();
+        }
+    }
+
+    private static class Result {
+
+        final String key;
+
+        final String output;
+
+        final long expiresAt;
+
+        Result(String key, String output, long expiresAt) {
+            this.key = key;
+            this.output = output;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean expired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
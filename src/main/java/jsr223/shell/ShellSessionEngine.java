@@ -0,0 +1,180 @@
+package jsr223.shell;
+
+import jsr223.shell.bash.Bash;
+import jsr223.shell.bash.BashFrames;
+import jsr223.shell.bash.BashSession;
+import jsr223.shell.util.IOUtil;
+
+import javax.script.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * An engine evaluating every script in the same bash process, see {@link BashSession}: shell
+ * variables, functions, {@code cd} and sourced files are kept between evaluations. The engine
+ * bindings are exported to the session when they changed.
+ * <p>
+ * Functions defined by earlier evaluations are invoked with {@link #invokeFunction(String, Object...)},
+ * their arguments passed as words. Evaluations run one at a time, the {@code shell_stdin},
+ * redirect and cache bindings are ignored. A script calling {@code exit} or running over its
+ * timeout ends the session, the evaluations after it fail with a {@link ScriptException} until
+ * the engine is {@link #close() closed}.
+ */
+public class ShellSessionEngine extends AbstractScriptEngine implements Invocable, Closeable {
+
+    private final Bash shell = new Bash();
+
+    private BashSession session;
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        BashSession session = session();
+        CommandResult commandResult;
+        try {
+            commandResult = new ShellHandler(shell, session).run(script, context);
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return ShellEngine.toReturnValue(commandResult);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        String script = IOUtil.toString(reader);
+        return eval(script == null ? "" : script, context);
+    }
+
+    /**
+     * Runs a shell function, or any command, with the context of the engine.
+     *
+     * @param args passed as words, null ones as empty words.
+     * @return the exit value, 0.
+     * @throws NoSuchMethodException if the session has no function nor command named {@code name}.
+     * @throws ScriptException if it exits with a non zero value.
+     */
+    @Override
+    public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+        if (!isDefined(name)) {
+            throw new NoSuchMethodException(name);
+        }
+        StringBuilder script = new StringBuilder(BashFrames.quote(name));
+        if (args != null) {
+            for (Object arg : args) {
+                script.append(' ').append(BashFrames.quote(arg == null ? null : arg.toString()));
+            }
+        }
+        return eval(script.toString(), context);
+    }
+
+    /**
+     * @throws IllegalArgumentException always, shell scripts do not create objects.
+     */
+    @Override
+    public Object invokeMethod(Object thiz, String name, Object... args) {
+        throw new IllegalArgumentException("Shell scripts have no objects");
+    }
+
+    /**
+     * Implements {@code clasz} with the functions of the session named after its methods.
+     * The methods return the exit value, they may be declared {@code void} or return an
+     * {@code int}, an {@link Integer} or an {@link Object}.
+     *
+     * @return null if a method has no function.
+     * @throws IllegalStateException if the session ended.
+     */
+    @Override
+    public <T> T getInterface(Class<T> clasz) {
+        if (clasz == null || !clasz.isInterface()) {
+            throw new IllegalArgumentException("Not an interface: " + clasz);
+        }
+        for (Method method : clasz.getMethods()) {
+            Class<?> returnType = method.getReturnType();
+            if (returnType != void.class && returnType != int.class && returnType != Integer.class && returnType != Object.class) {
+                throw new IllegalArgumentException("Functions return their exit value: " + method);
+            }
+            try {
+                if (!isDefined(method.getName())) {
+                    return null;
+                }
+            } catch (ScriptException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        return clasz.cast(Proxy.newProxyInstance(clasz.getClassLoader(), new Class<?>[]{clasz}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(this, args);
+                }
+                Object exitValue = invokeFunction(method.getName(), args);
+                return method.getReturnType() == void.class ? null : exitValue;
+            }
+        }));
+    }
+
+    /**
+     * @throws IllegalArgumentException always, shell scripts do not create objects.
+     */
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> clasz) {
+        throw new IllegalArgumentException("Shell scripts have no objects");
+    }
+
+    /**
+     * @return true until the bash process of the session exited.
+     */
+    public synchronized boolean isAlive() {
+        return session == null || session.isAlive();
+    }
+
+    /**
+     * Ends the bash process, the next evaluation starts a new session.
+     */
+    @Override
+    public synchronized void close() {
+        if (session != null) {
+            session.destroy();
+            session = null;
+        }
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return new ShellSessionEngineFactory();
+    }
+
+    private boolean isDefined(String name) throws ScriptException {
+        BashSession session = session();
+        try {
+            return session.execute("type -t " + BashFrames.quote(name) + " >/dev/null", null, null, null, ShellHandler.timeout(context.getBindings(ScriptContext.ENGINE_SCOPE))) == 0;
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+    }
+
+    /**
+     * @throws ScriptException if the session ended, or the bash process could not start.
+     */
+    private synchronized BashSession session() throws ScriptException {
+        if (session != null && !session.isAlive()) {
+            throw new ScriptException("The bash session ended, close the engine to start a new one");
+        }
+        if (session == null) {
+            try {
+                session = new BashSession(ShellHandler.getCharsetName(), ShellHandler.getDefaultEnvironment().getVariables());
+            } catch (IOException e) {
+                throw new ScriptException(e);
+            }
+        }
+        return session;
+    }
+}
@@ -0,0 +1,101 @@
+package jsr223.shell;
+
+import jsr223.shell.bash.Bash;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Engines evaluating every script in the same bash process, see {@link ShellSessionEngine}. Each
+ * engine has a session of its own.
+ */
+public class ShellSessionEngineFactory implements ScriptEngineFactory {
+
+    private static final Bash utilShell = new Bash();
+    private static final Map<String, Object> parameters = new HashMap<String, Object>();
+
+    static {
+        parameters.put(ScriptEngine.NAME, "bash-session");
+        parameters.put(ScriptEngine.ENGINE, "Bash session");
+        parameters.put(ScriptEngine.LANGUAGE, "Shell");
+    }
+
+    @Override
+    public String getEngineName() {
+        return getParameter(ScriptEngine.NAME).toString();
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return getParameter(ScriptEngine.ENGINE_VERSION).toString();
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> getNames() {
+        return asList("bash-session", "shell-session");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return getParameter(ScriptEngine.LANGUAGE).toString();
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return getParameter(ScriptEngine.LANGUAGE_VERSION).toString();
+    }
+
+    /**
+     * The versions are the ones of bash, probed the first time they are asked for, see {@link ShellVersions}.
+     */
+    @Override
+    public Object getParameter(String key) {
+        if (ScriptEngine.ENGINE_VERSION.equals(key)) {
+            return ShellVersions.getInstalledVersion(utilShell);
+        }
+        if (ScriptEngine.LANGUAGE_VERSION.equals(key)) {
+            return ShellVersions.getMajorVersion(utilShell);
+        }
+        return parameters.get(key);
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        String methodCall = m;
+        for (String arg : args) {
+            methodCall += " " + arg;
+        }
+        return methodCall;
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return utilShell.getOutputStatement(toDisplay);
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        return utilShell.getProgram(statements);
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new ShellSessionEngine();
+    }
+}
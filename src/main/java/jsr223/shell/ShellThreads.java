@@ -0,0 +1,93 @@
+package jsr223.shell;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+
+/**
+ * Creates the threads waiting for processes and copying their streams: platform daemon threads,
+ * or virtual threads on Java 21 and later, which let a blocking evaluation cost no platform thread.
+ */
+public final class ShellThreads {
+
+    public static final String PLATFORM = "platform";
+
+    public static final String VIRTUAL = "virtual";
+
+    /** Thread.ofVirtual() and Thread.Builder.name(String) and unstarted(Runnable), from Java 21 */
+    private static final Method OF_VIRTUAL;
+
+    private static final Method NAME;
+
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            // a preview feature on Java 19 and 20, throwing unless enabled
+            unstarted.invoke(ofVirtual.invoke(null), new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private ShellThreads() {
+    }
+
+    /**
+     * @return true if the JVM can start virtual threads.
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param threads "platform" or "virtual".
+     * @return true for "virtual" if the JVM supports it, false otherwise.
+     */
+    public static boolean isVirtual(String threads) {
+        return VIRTUAL.equals(threads) && isVirtualSupported();
+    }
+
+    /**
+     * @param virtual creates a virtual thread, if the JVM supports them.
+     * @return an unstarted thread, a daemon one when it is a platform thread.
+     */
+    public static Thread newThread(Runnable task, String name, boolean virtual) {
+        if (virtual && isVirtualSupported()) {
+            try {
+                return (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not create a virtual thread", e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * @return an executor starting a thread per task.
+     * @see #newThread(Runnable, String, boolean)
+     */
+    public static Executor perTask(final String name, final boolean virtual) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                newThread(task, name, virtual).start();
+            }
+        };
+    }
+}
@@ -0,0 +1,118 @@
+package jsr223.shell;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One daemon thread handling the timeouts of all executions.
+ */
+public final class ShellTimeouts {
+
+    private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+
+    private static final AtomicInteger pending = new AtomicInteger();
+
+    private static final AtomicLong scheduled = new AtomicLong();
+
+    private static final AtomicLong fired = new AtomicLong();
+
+    private ShellTimeouts() {
+    }
+
+    /**
+     * Runs {@code onTimeout} after {@code timeout} milliseconds unless the returned deadline
+     * is cancelled first.
+     */
+    public static Deadline schedule(final Runnable onTimeout, long timeout) {
+        final Deadline deadline = new Deadline();
+        pending.incrementAndGet();
+        scheduled.incrementAndGet();
+        deadline.future = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (deadline.complete()) {
+                    fired.incrementAndGet();
+                    onTimeout.run();
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        return deadline;
+    }
+
+    /**
+     * @return the number of deadlines neither cancelled nor expired.
+     */
+    public static int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return the number of deadlines scheduled since the JVM started.
+     */
+    public static long getScheduledCount() {
+        return scheduled.get();
+    }
+
+    /**
+     * @return the number of deadlines which expired since the JVM started.
+     */
+    public static long getFiredCount() {
+        return fired.get();
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jsr223-shell-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            // Java 7+, cancelled deadlines would otherwise stay queued until they expire
+            Method removeOnCancel = ScheduledThreadPoolExecutor.class.getMethod("setRemoveOnCancelPolicy", boolean.class);
+            removeOnCancel.invoke(executor, true);
+        } catch (Exception e) {
+            ;
+        }
+        return executor;
+    }
+
+    /**
+     * A scheduled timeout.
+     */
+    public static class Deadline {
+
+        private final AtomicInteger state = new AtomicInteger();
+
+        private volatile ScheduledFuture<?> future;
+
+        /**
+         * @return false if the deadline already expired.
+         */
+        public boolean cancel() {
+            if (!complete()) {
+                return false;
+            }
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+            return true;
+        }
+
+        private boolean complete() {
+            if (state.compareAndSet(0, 1)) {
+                pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
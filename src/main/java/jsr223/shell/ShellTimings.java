@@ -0,0 +1,128 @@
+package jsr223.shell;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Where the time of an evaluation went.
+ * <p>
+ * {@link Phase#FIRST_OUTPUT} and {@link Phase#RUNTIME} are measured from the start of the
+ * process, output is decoded while it runs so {@link Phase#OUTPUT} only covers what is left
+ * once it exited: flushing the decoders and writing to the writers of the context.
+ */
+public class ShellTimings {
+
+    public enum Phase {
+        /** building the variables from the bindings and encoding the environment */
+        ENVIRONMENT,
+        /** writing the script to a temporary file */
+        SCRIPT_FILE,
+        /** starting the process, or waiting for a worker of the pool */
+        SPAWN,
+        /** from the start of the process to its first byte of output */
+        FIRST_OUTPUT,
+        /** from the start of the process to its exit */
+        RUNTIME,
+        /** from the exit of the process to the end of the evaluation */
+        OUTPUT,
+        /** the whole evaluation */
+        TOTAL
+    }
+
+    private final long start = System.nanoTime();
+
+    private final long[] nanos = new long[Phase.values().length];
+
+    private final boolean[] timed = new boolean[Phase.values().length];
+
+    private volatile long launched;
+
+    private volatile boolean output;
+
+    /**
+     * @return the time spent in {@code phase}, 0 when it did not happen.
+     */
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * @return true if {@code phase} happened during the evaluation and its time was measured.
+     */
+    public boolean isTimed(Phase phase) {
+        return timed[phase.ordinal()];
+    }
+
+    public double getMillis(Phase phase) {
+        return nanos[phase.ordinal()] / 1000000.0;
+    }
+
+    void add(Phase phase, long elapsed) {
+        nanos[phase.ordinal()] += elapsed;
+        timed[phase.ordinal()] = true;
+    }
+
+    /**
+     * The process started, after {@code spawnNanos}.
+     */
+    void launched(long spawnNanos) {
+        add(Phase.SPAWN, spawnNanos);
+        launched = System.nanoTime();
+    }
+
+    void exited() {
+        if (launched != 0) {
+            set(Phase.RUNTIME, System.nanoTime() - launched);
+        }
+    }
+
+    void end() {
+        set(Phase.TOTAL, System.nanoTime() - start);
+    }
+
+    private void set(Phase phase, long elapsed) {
+        nanos[phase.ordinal()] = elapsed;
+        timed[phase.ordinal()] = true;
+    }
+
+    /**
+     * @return {@code os}, noting when the first byte is written to it.
+     */
+    OutputStream watch(OutputStream os) {
+        return new FilterOutputStream(os) {
+            @Override
+            public void write(int b) throws IOException {
+                firstOutput();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                firstOutput();
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    private void firstOutput() {
+        if (!output) {
+            synchronized (this) {
+                if (!output && launched != 0) {
+                    set(Phase.FIRST_OUTPUT, System.nanoTime() - launched);
+                }
+                output = true;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(phase.name().toLowerCase()).append('=')
+                    .append(String.format("%.3f", getMillis(phase))).append("ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,127 @@
+package jsr223.shell;
+
+import java.io.*;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Installed and major versions of the shells, probed with a single process the first time
+ * they are asked for and memoized per shell binary. Later calls find them by the name of the
+ * command, without looking the binary up on the PATH again.
+ * <p>
+ * When {@code shell_version_cache} names a file, versions are also kept there, keyed by
+ * the path and modification time of the binary, so a new JVM does not probe again until
+ * the shell is upgraded.
+ */
+public final class ShellVersions {
+
+    public static final String UNKNOWN = "Could not determine version";
+
+    private static final String CACHE_FILE = System.getProperty(ShellHandler.SHELL + "version_cache");
+
+    private static final ConcurrentMap<String, String[]> versions = new ConcurrentHashMap<String, String[]>();
+
+    private static final ConcurrentMap<String, String[]> byCommand = new ConcurrentHashMap<String, String[]>();
+
+    private ShellVersions() {
+    }
+
+    public static String getInstalledVersion(Shell shell) {
+        return get(shell)[0];
+    }
+
+    public static String getMajorVersion(Shell shell) {
+        return get(shell)[1];
+    }
+
+    private static String[] get(Shell shell) {
+        String[] known = byCommand.get(shell.getExecutable());
+        if (known != null) {
+            return known;
+        }
+        File binary = resolve(shell.getExecutable());
+        String key = binary == null ? shell.getExecutable() : binary.getAbsolutePath();
+        String[] cached = versions.get(key);
+        if (cached == null) {
+            String diskKey = binary == null ? null : key + "@" + binary.lastModified();
+            cached = readCache(diskKey);
+            if (cached == null) {
+                cached = new ShellHandler(shell).getVersions();
+                if (!UNKNOWN.equals(cached[0])) {
+                    writeCache(diskKey, cached);
+                }
+            }
+            String[] previous = versions.putIfAbsent(key, cached);
+            if (previous != null) {
+                cached = previous;
+            }
+        }
+        byCommand.putIfAbsent(shell.getExecutable(), cached);
+        return cached;
+    }
+
+    /**
+     * Looks the executable up on the PATH.
+     */
+    static File resolve(String executable) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        String[] extensions = {"", ".exe", ".com"};
+        for (String directory : path.split(File.pathSeparator)) {
+            for (String extension : extensions) {
+                File file = new File(directory, executable + extension);
+                if (file.isFile()) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static synchronized String[] readCache(String diskKey) {
+        if (CACHE_FILE == null || diskKey == null) {
+            return null;
+        }
+        Properties properties = load();
+        String installed = properties.getProperty(diskKey + ".installed");
+        String major = properties.getProperty(diskKey + ".major");
+        return installed == null || major == null ? null : new String[]{installed, major};
+    }
+
+    private static synchronized void writeCache(String diskKey, String[] cached) {
+        if (CACHE_FILE == null || diskKey == null) {
+            return;
+        }
+        Properties properties = load();
+        properties.setProperty(diskKey + ".installed", cached[0]);
+        properties.setProperty(diskKey + ".major", cached[1]);
+        try {
+            OutputStream os = new FileOutputStream(CACHE_FILE);
+            try {
+                properties.store(os, "jsr223-shell versions");
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            ;
+        }
+    }
+
+    private static Properties load() {
+        Properties properties = new Properties();
+        try {
+            InputStream is = new FileInputStream(CACHE_FILE);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            ;
+        }
+        return properties;
+    }
+}
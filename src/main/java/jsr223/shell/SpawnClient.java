@@ -0,0 +1,228 @@
+package jsr223.shell;
+
+import java.io.*;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Starts processes through a {@link SpawnHelper} JVM, started once with a small heap, so the cost
+ * of creating a process does not grow with the heap of this JVM. Needs Unix domain sockets, from
+ * Java 16.
+ * <p>
+ * The helper is a second, full JVM: it is started with the {@code java} executable of this JVM and
+ * the {@code shell_spawn_helper_opts} options (by default {@code -Xmx32m -XX:+UseSerialGC -Xshare:auto},
+ * a few tens of MB of resident memory and a JVM startup before the first process), and restarted if
+ * it died. It is destroyed when this JVM exits.
+ */
+public final class SpawnClient {
+
+    private static String helperOpts = System.getProperty(ShellHandler.SHELL + "spawn_helper_opts", "-Xmx32m -XX:+UseSerialGC -Xshare:auto");
+
+    private static SpawnClient instance;
+
+    private static boolean shutdownHook;
+
+    private final Process helper;
+
+    private final Path directory;
+
+    private final Path socket;
+
+    private SpawnClient(Process helper, Path directory, Path socket) {
+        this.helper = helper;
+        this.directory = directory;
+        this.socket = socket;
+    }
+
+    /**
+     * @return true if the JVM supports Unix domain sockets.
+     */
+    public static boolean isSupported() {
+        return UnixSockets.isSupported();
+    }
+
+    /**
+     * @return the client of the running helper, started now if there is none.
+     */
+    public static synchronized SpawnClient getInstance() throws IOException {
+        if (instance == null || !instance.isAlive()) {
+            if (instance != null) {
+                instance.shutdown();
+            }
+            instance = start();
+            if (!shutdownHook) {
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        shutdownInstance();
+                    }
+                }, "jsr223-shell-spawn-shutdown"));
+                shutdownHook = true;
+            }
+        }
+        return instance;
+    }
+
+    private static synchronized void shutdownInstance() {
+        if (instance != null) {
+            instance.shutdown();
+        }
+    }
+
+    /**
+     * Starts a process like {@link ProcessBuilder#start()}.
+     *
+     * @param environment {@code NAME=value} entries, null to inherit the environment of the helper,
+     *                    itself inheriting the one of this JVM.
+     * @param dir the working directory, null for the one of this JVM.
+     * @param input where stdin is read from: a pipe or a file.
+     * @param output where stdout goes: a pipe or a file to write or to append to.
+     * @param error where stderr goes, ignored when it is merged.
+     * @throws IllegalArgumentException for an inherited stream, it would be the one of the helper.
+     */
+    public Process spawn(String[] command, String[] environment, File dir, ProcessBuilder.Redirect input,
+                         ProcessBuilder.Redirect output, ProcessBuilder.Redirect error, boolean mergeError) throws IOException {
+        SocketChannel channel = UnixSockets.connect(socket);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(UnixSockets.out(channel)));
+            out.writeByte(SpawnHelper.REQUEST_SPAWN);
+            out.writeInt(command.length);
+            for (String argument : command) {
+                SpawnHelper.writeString(out, argument);
+            }
+            out.writeInt(environment == null ? -1 : environment.length);
+            if (environment != null) {
+                for (String entry : environment) {
+                    SpawnHelper.writeString(out, entry);
+                }
+            }
+            SpawnHelper.writeString(out, dir == null ? "" : dir.getPath());
+            writeRedirect(out, input);
+            writeRedirect(out, output);
+            writeRedirect(out, error);
+            out.writeBoolean(mergeError);
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(UnixSockets.in(channel)));
+            byte frame = in.readByte();
+            if (frame == SpawnHelper.FRAME_FAILED) {
+                throw new IOException("Cannot run program \"" + command[0] + "\": " + SpawnHelper.readString(in));
+            }
+            return new SpawnedProcess(this, channel, in, out, in.readInt());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Destroys a process started by the helper.
+     */
+    void kill(int id) throws IOException {
+        SocketChannel channel = UnixSockets.connect(socket);
+        try {
+            DataOutputStream out = new DataOutputStream(UnixSockets.out(channel));
+            out.writeByte(SpawnHelper.REQUEST_KILL);
+            out.writeInt(id);
+            out.flush();
+            // the helper closes the connection once it is done
+            UnixSockets.in(channel).read();
+        } finally {
+            channel.close();
+        }
+    }
+
+    boolean isAlive() {
+        try {
+            helper.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private static void writeRedirect(DataOutputStream out, ProcessBuilder.Redirect redirect) throws IOException {
+        switch (redirect.type()) {
+            case PIPE:
+                out.writeByte(SpawnHelper.REDIRECT_PIPE);
+                return;
+            case READ:
+                out.writeByte(SpawnHelper.REDIRECT_READ);
+                break;
+            case WRITE:
+                out.writeByte(SpawnHelper.REDIRECT_WRITE);
+                break;
+            case APPEND:
+                out.writeByte(SpawnHelper.REDIRECT_APPEND);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported redirect: " + redirect);
+        }
+        SpawnHelper.writeString(out, redirect.file().getAbsolutePath());
+    }
+
+    private static SpawnClient start() throws IOException {
+        if (!isSupported()) {
+            throw new IOException("Unix domain sockets need Java 16 or later");
+        }
+        // only readable by this user
+        Path directory = Files.createTempDirectory("jsr223-shell-spawn");
+        Path socket = directory.resolve("helper.sock");
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        if (helperOpts.trim().length() > 0) {
+            command.addAll(Arrays.asList(helperOpts.trim().split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(classpath());
+        command.add(SpawnHelper.class.getName());
+        command.add(socket.toString());
+        Process helper = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        SpawnClient client = new SpawnClient(helper, directory, socket);
+        final BufferedReader out = new BufferedReader(new InputStreamReader(helper.getInputStream(), "US-ASCII"));
+        String line = out.readLine();
+        if (!SpawnHelper.READY.equals(line)) {
+            client.shutdown();
+            throw new IOException("Spawn helper did not start: " + line);
+        }
+        // JVM messages of the helper, e.g. -Xlog output, must not fill the pipe and stall it
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (out.readLine() != null) {
+                        ;
+                    }
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }, "jsr223-shell-spawn-output");
+        drain.setDaemon(true);
+        drain.start();
+        return client;
+    }
+
+    /**
+     * @return the JAR or directory holding the classes of this library.
+     */
+    private static String classpath() throws IOException {
+        try {
+            return new File(SpawnHelper.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (Exception e) {
+            throw new IOException("Cannot locate the classes of the spawn helper", e);
+        }
+    }
+
+    private void shutdown() {
+        helper.destroy();
+        socket.toFile().delete();
+        directory.toFile().delete();
+    }
+}
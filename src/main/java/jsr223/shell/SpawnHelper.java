@@ -0,0 +1,284 @@
+package jsr223.shell;
+
+import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Main class of the small JVM starting processes on behalf of {@link SpawnClient}, so a JVM with
+ * a large heap never forks itself. It listens on a Unix domain socket and exits once its stdin,
+ * a pipe from the JVM which started it, is closed.
+ * <p>
+ * Every connection carries one request. A spawn request is followed by frames of stdin from the
+ * client, the helper answers with a started or failed frame, frames of stdout and stderr, and the
+ * exit value once the process exited and its output was sent. A kill request destroys a process
+ * started by an earlier connection.
+ */
+public final class SpawnHelper {
+
+    static final String READY = "ready";
+
+    static final byte REQUEST_SPAWN = 1;
+
+    static final byte REQUEST_KILL = 2;
+
+    /** client to helper, a chunk of stdin, an empty one closes it */
+    static final byte FRAME_IN = 1;
+
+    /** helper to client */
+    static final byte FRAME_STARTED = 1;
+
+    static final byte FRAME_FAILED = 2;
+
+    static final byte FRAME_OUT = 3;
+
+    static final byte FRAME_ERR = 4;
+
+    static final byte FRAME_EXIT = 5;
+
+    static final byte REDIRECT_PIPE = 0;
+
+    static final byte REDIRECT_READ = 1;
+
+    static final byte REDIRECT_WRITE = 2;
+
+    static final byte REDIRECT_APPEND = 3;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private static final Map<Integer, Process> processes = new ConcurrentHashMap<Integer, Process>();
+
+    private SpawnHelper() {
+    }
+
+    /**
+     * @param args the path of the socket to listen on.
+     */
+    public static void main(String[] args) throws IOException {
+        Path path = Paths.get(args[0]);
+        ServerSocketChannel server = UnixSockets.bind(path);
+        path.toFile().deleteOnExit();
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (System.in.read() != -1) {
+                        ;
+                    }
+                } catch (IOException e) {
+                    ;
+                }
+                System.exit(0);
+            }
+        }, "jsr223-shell-spawn-parent");
+        System.out.println(READY);
+        System.out.flush();
+        while (true) {
+            final SocketChannel channel = server.accept();
+            start(new Runnable() {
+                @Override
+                public void run() {
+                    serve(channel);
+                }
+            }, "jsr223-shell-spawn-connection");
+        }
+    }
+
+    private static void serve(SocketChannel channel) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(UnixSockets.in(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(UnixSockets.out(channel)));
+            if (in.readByte() == REQUEST_KILL) {
+                Process process = processes.get(in.readInt());
+                if (process != null) {
+                    ProcessSupport.destroyDescendants(process);
+                    process.destroy();
+                }
+                return;
+            }
+            spawn(in, out);
+        } catch (IOException e) {
+            ;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ;
+            }
+        }
+    }
+
+    private static void spawn(DataInputStream in, final DataOutputStream out) throws IOException {
+        final Process process;
+        try {
+            process = readRequest(in).start();
+        } catch (IOException e) {
+            synchronized (out) {
+                out.writeByte(FRAME_FAILED);
+                writeString(out, String.valueOf(e.getMessage()));
+                out.flush();
+            }
+            return;
+        }
+        final int id = ids.incrementAndGet();
+        processes.put(id, process);
+        synchronized (out) {
+            out.writeByte(FRAME_STARTED);
+            out.writeInt(id);
+            out.flush();
+        }
+        final Thread outPump = start(new Runnable() {
+            @Override
+            public void run() {
+                pump(process.getInputStream(), FRAME_OUT, out);
+            }
+        }, "jsr223-shell-spawn-out");
+        final Thread errPump = start(new Runnable() {
+            @Override
+            public void run() {
+                pump(process.getErrorStream(), FRAME_ERR, out);
+            }
+        }, "jsr223-shell-spawn-err");
+        Thread waiter = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int exitValue = process.waitFor();
+                    outPump.join();
+                    errPump.join();
+                    synchronized (out) {
+                        out.writeByte(FRAME_EXIT);
+                        out.writeInt(exitValue);
+                        out.flush();
+                    }
+                } catch (InterruptedException e) {
+                    ;
+                } catch (IOException e) {
+                    ;
+                } finally {
+                    processes.remove(id);
+                }
+            }
+        }, "jsr223-shell-spawn-wait");
+        OutputStream stdin = process.getOutputStream();
+        try {
+            while (in.readByte() == FRAME_IN) {
+                byte[] chunk = new byte[in.readInt()];
+                in.readFully(chunk);
+                if (stdin == null) {
+                    continue;
+                }
+                try {
+                    if (chunk.length == 0) {
+                        stdin.close();
+                        stdin = null;
+                    } else {
+                        stdin.write(chunk);
+                        stdin.flush();
+                    }
+                } catch (IOException e) {
+                    // the process exited or closed its stdin, what follows is dropped
+                    stdin = null;
+                }
+            }
+        } catch (EOFException e) {
+            ;
+        } finally {
+            if (stdin != null) {
+                try {
+                    stdin.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+        try {
+            waiter.join();
+        } catch (InterruptedException e) {
+            ;
+        }
+    }
+
+    private static ProcessBuilder readRequest(DataInputStream in) throws IOException {
+        String[] command = new String[in.readInt()];
+        for (int i = 0; i < command.length; i++) {
+            command[i] = readString(in);
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        int variables = in.readInt();
+        if (variables >= 0) {
+            Map<String, String> environment = processBuilder.environment();
+            environment.clear();
+            for (int i = 0; i < variables; i++) {
+                String entry = readString(in);
+                int equals = entry.indexOf('=');
+                environment.put(entry.substring(0, equals), entry.substring(equals + 1));
+            }
+        }
+        String dir = readString(in);
+        if (dir.length() > 0) {
+            processBuilder.directory(new File(dir));
+        }
+        processBuilder.redirectInput(readRedirect(in));
+        processBuilder.redirectOutput(readRedirect(in));
+        processBuilder.redirectError(readRedirect(in));
+        processBuilder.redirectErrorStream(in.readBoolean());
+        return processBuilder;
+    }
+
+    private static ProcessBuilder.Redirect readRedirect(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == REDIRECT_PIPE) {
+            return ProcessBuilder.Redirect.PIPE;
+        }
+        File file = new File(readString(in));
+        if (type == REDIRECT_READ) {
+            return ProcessBuilder.Redirect.from(file);
+        }
+        return type == REDIRECT_APPEND ? ProcessBuilder.Redirect.appendTo(file) : ProcessBuilder.Redirect.to(file);
+    }
+
+    private static void pump(InputStream is, byte frame, DataOutputStream out) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int n = is.read(buffer);
+            while (n != -1) {
+                synchronized (out) {
+                    out.writeByte(frame);
+                    out.writeInt(n);
+                    out.write(buffer, 0, n);
+                    out.flush();
+                }
+                n = is.read(buffer);
+            }
+        } catch (IOException e) {
+            ;
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static Thread start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
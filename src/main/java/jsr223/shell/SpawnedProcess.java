@@ -0,0 +1,274 @@
+package jsr223.shell;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A process started by the {@link SpawnHelper}, its streams are carried by the connection of the
+ * spawn request. A thread reads the frames of the helper into a bounded buffer per stream, a full
+ * buffer stops reading the connection until the stream is read, like a full pipe would.
+ */
+class SpawnedProcess extends Process {
+
+    /** exit value when the connection to the helper is lost */
+    static final int LOST_EXIT_VALUE = -1;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final SpawnClient client;
+
+    private final SocketChannel channel;
+
+    private final DataOutputStream toHelper;
+
+    private final int id;
+
+    private final FrameBuffer stdout = new FrameBuffer(BUFFER_SIZE);
+
+    private final FrameBuffer stderr = new FrameBuffer(BUFFER_SIZE);
+
+    private final OutputStream stdin;
+
+    private final CountDownLatch exited = new CountDownLatch(1);
+
+    private final CompletableFuture<Process> onExit = new CompletableFuture<Process>();
+
+    private volatile int exitValue = LOST_EXIT_VALUE;
+
+    SpawnedProcess(SpawnClient client, SocketChannel channel, final DataInputStream fromHelper, DataOutputStream toHelper, int id) {
+        this.client = client;
+        this.channel = channel;
+        this.toHelper = toHelper;
+        this.id = id;
+        this.stdin = new StdinStream();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(fromHelper);
+            }
+        }, "jsr223-shell-spawned-" + id);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read(DataInputStream fromHelper) {
+        byte[] chunk = new byte[8192];
+        try {
+            while (true) {
+                byte frame = fromHelper.readByte();
+                if (frame == SpawnHelper.FRAME_EXIT) {
+                    exitValue = fromHelper.readInt();
+                    break;
+                }
+                int length = fromHelper.readInt();
+                if (chunk.length < length) {
+                    chunk = new byte[length];
+                }
+                fromHelper.readFully(chunk, 0, length);
+                (frame == SpawnHelper.FRAME_OUT ? stdout : stderr).write(chunk, 0, length);
+            }
+        } catch (IOException e) {
+            ;
+        } catch (InterruptedException e) {
+            ;
+        } finally {
+            stdout.end();
+            stderr.end();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ;
+            }
+            exited.countDown();
+            onExit.complete(this);
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return stdin;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return stdout;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return stderr;
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        exited.await();
+        return exitValue;
+    }
+
+    @Override
+    public int exitValue() {
+        if (exited.getCount() > 0) {
+            throw new IllegalThreadStateException("process hasn't exited");
+        }
+        return exitValue;
+    }
+
+    /**
+     * Completes once the process exited and its output was read from the helper, overrides
+     * {@code Process.onExit()} on Java 9 and later.
+     */
+    public CompletableFuture<Process> onExit() {
+        return onExit;
+    }
+
+    @Override
+    public void destroy() {
+        if (exited.getCount() > 0) {
+            try {
+                client.kill(id);
+            } catch (IOException e) {
+                ;
+            }
+        }
+    }
+
+    /**
+     * Sends stdin in frames, the end of stdin on close.
+     */
+    private class StdinStream extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (toHelper) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                toHelper.writeByte(SpawnHelper.FRAME_IN);
+                toHelper.writeInt(len);
+                toHelper.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (toHelper) {
+                toHelper.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (toHelper) {
+                if (!closed) {
+                    closed = true;
+                    toHelper.writeByte(SpawnHelper.FRAME_IN);
+                    toHelper.writeInt(0);
+                    toHelper.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * A bounded buffer between the thread reading the helper and the one reading the stream.
+     * Once the stream is closed, what the helper sends for it is dropped.
+     */
+    private static class FrameBuffer extends InputStream {
+
+        private final byte[] buffer;
+
+        private int start;
+
+        private int count;
+
+        private boolean ended;
+
+        private boolean closed;
+
+        FrameBuffer(int size) {
+            this.buffer = new byte[size];
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws InterruptedException {
+            while (len > 0 && !closed) {
+                while (count == buffer.length && !closed) {
+                    wait();
+                }
+                if (closed) {
+                    return;
+                }
+                int end = (start + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - end));
+                System.arraycopy(b, off, buffer, end, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (count == 0 && !ended && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (count == 0) {
+                return -1;
+            }
+            int n = Math.min(len, Math.min(count, buffer.length - start));
+            System.arraycopy(buffer, start, b, off, n);
+            start = (start + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return count;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            count = 0;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package jsr223.shell;
+
+import jsr223.shell.util.IOUtil;
+import org.apache.commons.exec.ExecuteStreamHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies an input stream to the stdin of the process on a thread of its own, leaving its
+ * output to another handler. The pipe of the process holds what it did not read yet, so
+ * the input is read no faster than the process consumes it.
+ * <p>
+ * Unlike {@link org.apache.commons.exec.PumpStreamHandler}, the exit of the process is not
+ * held up by an input which has not ended. When the process exits first, the copy thread is
+ * interrupted and the input is closed if it is owned by the handler ({@code closeInput}).
+ * Otherwise the caller owns the input and the copy thread: a read blocked on an input which is
+ * neither interruptible, like a {@link java.io.PipedInputStream} or an interruptible channel,
+ * nor closed by the caller, like {@code System.in}, keeps the thread until the input delivers
+ * bytes or ends, the bytes are then dropped.
+ */
+public class StdinStreamHandler implements ExecuteStreamHandler {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ExecuteStreamHandler output;
+
+    private final InputStream input;
+
+    private final boolean closeInput;
+
+    private final boolean virtual;
+
+    private OutputStream stdin;
+
+    private Thread thread;
+
+    /**
+     * @param output copies the output of the process.
+     * @param closeInput closes {@code input} once it was copied.
+     */
+    public StdinStreamHandler(ExecuteStreamHandler output, InputStream input, boolean closeInput) {
+        this(output, input, closeInput, false);
+    }
+
+    /**
+     * @param virtual copies the input with a virtual thread, if the JVM supports them.
+     */
+    public StdinStreamHandler(ExecuteStreamHandler output, InputStream input, boolean closeInput, boolean virtual) {
+        this.output = output;
+        this.input = input;
+        this.closeInput = closeInput;
+        this.virtual = virtual;
+    }
+
+    @Override
+    public void setProcessInputStream(OutputStream os) {
+        this.stdin = os;
+    }
+
+    @Override
+    public void setProcessErrorStream(InputStream is) throws IOException {
+        output.setProcessErrorStream(is);
+    }
+
+    @Override
+    public void setProcessOutputStream(InputStream is) throws IOException {
+        output.setProcessOutputStream(is);
+    }
+
+    @Override
+    public void start() throws IOException {
+        output.start();
+        thread = ShellThreads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                copy();
+            }
+        }, "jsr223-shell-stdin", virtual);
+        thread.start();
+    }
+
+    @Override
+    public void stop() throws IOException {
+        try {
+            output.stop();
+        } finally {
+            if (thread.isAlive()) {
+                // the process exited without reading everything
+                thread.interrupt();
+                IOUtil.closeSilently(stdin);
+                if (closeInput) {
+                    IOUtil.closeSilently(input);
+                }
+            }
+        }
+    }
+
+    private void copy() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int n = input.read(buffer);
+            while (n != -1) {
+                stdin.write(buffer, 0, n);
+                stdin.flush();
+                n = input.read(buffer);
+            }
+        } catch (IOException e) {
+            // a closed input ends the stdin, a closed pipe means the process is gone
+        } finally {
+            IOUtil.closeSilently(stdin);
+            if (closeInput) {
+                IOUtil.closeSilently(input);
+            }
+        }
+    }
+}
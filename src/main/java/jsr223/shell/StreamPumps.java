@@ -0,0 +1,195 @@
+package jsr223.shell;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A few daemon threads copying the output of all the running processes, instead of two
+ * threads per process.
+ * <p>
+ * Pipes of a process can not be read without blocking, so each thread takes a registered
+ * stream, copies at most one slice of what is {@link InputStream#available() available}
+ * and queues the stream again. Threads back off for a moment when a whole round of streams
+ * had nothing to read. What is left once the process exited is drained by
+ * {@link Pump#finish()}.
+ * <p>
+ * The output streams must not block: while one does, it holds a thread which all the other
+ * processes need. {@link ShellHandler} only uses them to capture the output.
+ */
+public final class StreamPumps {
+
+    private static final int SLICE_SIZE = 8192;
+
+    private static final long MAX_IDLE_NANOS = 5000000L;
+
+    private static final int threadCount = Integer.parseInt(System.getProperty(ShellHandler.SHELL + "pump_threads", "2"));
+
+    private static final ConcurrentLinkedQueue<Pump> pumps = new ConcurrentLinkedQueue<Pump>();
+
+    private static final AtomicInteger registered = new AtomicInteger();
+
+    private static final Object idleLock = new Object();
+
+    static {
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    pumpLoop();
+                }
+            }, "jsr223-shell-pump-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private StreamPumps() {
+    }
+
+    /**
+     * Starts copying {@code is} to {@code os}.
+     */
+    public static Pump register(InputStream is, OutputStream os) {
+        Pump pump = new Pump(is, os);
+        registered.incrementAndGet();
+        pumps.offer(pump);
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+        return pump;
+    }
+
+    /**
+     * @return the number of streams being copied.
+     */
+    public static int getRegisteredCount() {
+        return registered.get();
+    }
+
+    private static void pumpLoop() {
+        byte[] buffer = new byte[SLICE_SIZE];
+        long idleNanos = 0;
+        int idleRound = 0;
+        while (true) {
+            Pump pump = pumps.poll();
+            if (pump == null) {
+                synchronized (idleLock) {
+                    try {
+                        if (pumps.isEmpty()) {
+                            idleLock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            if (pump.pumpSlice(buffer)) {
+                idleNanos = 0;
+                idleRound = 0;
+            } else {
+                idleRound++;
+            }
+            if (!pump.isFinished()) {
+                pumps.offer(pump);
+            }
+            if (idleRound >= Math.max(1, registered.get())) {
+                // nothing to read from any stream, wait a little longer each round
+                idleNanos = Math.min(Math.max(idleNanos * 2, 50000L), MAX_IDLE_NANOS);
+                LockSupport.parkNanos(idleNanos);
+                idleRound = 0;
+            }
+        }
+    }
+
+    /**
+     * A stream being copied.
+     */
+    public static class Pump {
+
+        private final InputStream is;
+
+        private final OutputStream os;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private volatile boolean finished;
+
+        private IOException caught;
+
+        Pump(InputStream is, OutputStream os) {
+            this.is = is;
+            this.os = os;
+        }
+
+        /**
+         * Copies what is left once the process exited and stops copying.
+         *
+         * @throws IOException if copying failed.
+         */
+        public void finish() throws IOException {
+            lock.lock();
+            try {
+                if (!finished) {
+                    byte[] buffer = new byte[SLICE_SIZE];
+                    while (!finished && pumpSlice(buffer)) {
+                        ;
+                    }
+                    end();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (caught != null) {
+                throw caught;
+            }
+        }
+
+        boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return true if bytes were copied.
+         */
+        private boolean pumpSlice(byte[] buffer) {
+            if (!lock.tryLock()) {
+                return false;
+            }
+            try {
+                if (finished) {
+                    return false;
+                }
+                int available = is.available();
+                if (available <= 0) {
+                    return false;
+                }
+                int n = is.read(buffer, 0, Math.min(available, buffer.length));
+                if (n == -1) {
+                    end();
+                    return false;
+                }
+                os.write(buffer, 0, n);
+                return true;
+            } catch (IOException e) {
+                caught = e;
+                end();
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void end() {
+            if (!finished) {
+                finished = true;
+                registered.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package jsr223.shell;
+
+import java.io.IOException;
+
+/**
+ * The subscription of a {@link LineSubscriber} to the streams of a process, handing it their lines
+ * while waiting for its demand on the threads reading the process, so a slow subscriber slows the
+ * process down instead of buffering lines.
+ * <p>
+ * A subscriber of both streams has a single subscription: the demand is shared by the
+ * {@link #sink(OutputLine.Stream) sinks} of the streams and its lines are delivered one at a time.
+ * <p>
+ * Once the deadline passed without demand the subscriber gets an error and the following lines
+ * are dropped, letting the timeout of the evaluation end the process.
+ */
+public class SubscriberSink implements LineSubscription {
+
+    private final LineSubscriber subscriber;
+
+    private final long deadline;
+
+    /** held while signalling the subscriber, lines of the two streams are read by different threads */
+    private final Object signal = new Object();
+
+    private long demand;
+
+    private boolean done;
+
+    /**
+     * @param deadline in milliseconds since the epoch.
+     */
+    public SubscriberSink(LineSubscriber subscriber, long deadline) {
+        this.subscriber = subscriber;
+        this.deadline = deadline;
+        subscriber.onSubscribe(this);
+    }
+
+    /**
+     * @return the sink of the lines of {@code stream}, numbered from 0.
+     */
+    public LineSink sink(final OutputLine.Stream stream) {
+        return new LineSink() {
+
+            private long sequence;
+
+            @Override
+            public void processLine(char[] chars, int off, int len) throws IOException {
+                deliver(stream, sequence++, chars, off, len, false);
+            }
+
+            @Override
+            public void processLinePart(char[] chars, int off, int len) throws IOException {
+                deliver(stream, sequence++, chars, off, len, true);
+            }
+
+            @Override
+            public void flush() {
+            }
+        };
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            error(new IllegalArgumentException("Requested " + n + " lines"));
+            return;
+        }
+        synchronized (this) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void cancel() {
+        done = true;
+        notifyAll();
+    }
+
+    /**
+     * All the lines were delivered.
+     */
+    public void complete() {
+        if (finish()) {
+            synchronized (signal) {
+                subscriber.onComplete();
+            }
+        }
+    }
+
+    public void error(Throwable cause) {
+        if (finish()) {
+            synchronized (signal) {
+                subscriber.onError(cause);
+            }
+        }
+    }
+
+    private synchronized boolean finish() {
+        boolean finished = !done;
+        done = true;
+        notifyAll();
+        return finished;
+    }
+
+    private void deliver(OutputLine.Stream stream, long sequence, char[] chars, int off, int len, boolean partial) throws IOException {
+        long now = System.nanoTime();
+        boolean timedOut;
+        synchronized (this) {
+            try {
+                while (!done && demand == 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    wait(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for demand");
+            }
+            if (done) {
+                return;
+            }
+            timedOut = demand == 0;
+            if (timedOut) {
+                done = true;
+            } else {
+                demand--;
+            }
+        }
+        synchronized (signal) {
+            if (timedOut) {
+                subscriber.onError(new IOException("No line requested before the timeout of the evaluation"));
+            } else {
+                subscriber.onLine(new OutputLine(stream, sequence, now, new String(chars, off, len), partial));
+            }
+        }
+    }
+}
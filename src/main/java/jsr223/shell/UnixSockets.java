@@ -0,0 +1,136 @@
+package jsr223.shell;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Unix domain socket channels, reached by reflection as they need Java 16.
+ */
+final class UnixSockets {
+
+    /** StandardProtocolFamily.UNIX, SocketChannel.open(ProtocolFamily), ServerSocketChannel.open(ProtocolFamily) and UnixDomainSocketAddress.of(Path) */
+    private static final ProtocolFamily UNIX;
+
+    private static final Method OPEN;
+
+    private static final Method OPEN_SERVER;
+
+    private static final Method ADDRESS_OF;
+
+    static {
+        ProtocolFamily unix = null;
+        Method open = null;
+        Method openServer = null;
+        Method addressOf = null;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+        } catch (Exception e) {
+            unix = null;
+        }
+        UNIX = unix;
+        OPEN = open;
+        OPEN_SERVER = openServer;
+        ADDRESS_OF = addressOf;
+    }
+
+    private UnixSockets() {
+    }
+
+    static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    static ServerSocketChannel bind(Path path) throws IOException {
+        ServerSocketChannel server = (ServerSocketChannel) invoke(OPEN_SERVER, null, UNIX);
+        server.bind((SocketAddress) invoke(ADDRESS_OF, null, path));
+        return server;
+    }
+
+    static SocketChannel connect(Path path) throws IOException {
+        SocketChannel channel = (SocketChannel) invoke(OPEN, null, UNIX);
+        try {
+            channel.connect((SocketAddress) invoke(ADDRESS_OF, null, path));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * @return a stream reading the channel, which may be written by another thread at the same time.
+     */
+    static InputStream in(final SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * @return a stream writing the channel, which may be read by another thread at the same time.
+     */
+    static OutputStream out(final SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.shutdownOutput();
+            }
+        };
+    }
+
+    private static Object invoke(Method method, Object target, Object argument) throws IOException {
+        try {
+            return method.invoke(target, argument);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unix domain socket failure", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException("Unix domain socket failure", e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package jsr223.shell;
+
+import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.commons.exec.StreamPumper;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link PumpStreamHandler} copying the output of a process with virtual threads, when
+ * the JVM supports them, instead of platform threads.
+ */
+public class VirtualPumpStreamHandler extends PumpStreamHandler {
+
+    /**
+     * @param out receives stdout, null not to read it.
+     * @param err receives stderr, null not to read it.
+     */
+    public VirtualPumpStreamHandler(OutputStream out, OutputStream err) {
+        super(out, err);
+    }
+
+    @Override
+    protected Thread createPump(InputStream is, OutputStream os, boolean closeWhenExhausted) {
+        return ShellThreads.newThread(new StreamPumper(is, os, closeWhenExhausted), "jsr223-shell-pump", true);
+    }
+}
@@ -12,9 +12,26 @@ public class Bash implements Shell {
         return new CommandLine("bash").addArgument(file.getAbsolutePath());
     }
 
+    /**
+     * The script is passed as is: quoted by commons-exec, a script with blanks reached bash wrapped
+     * in quotes and ran as a single command name, and one with both kinds of quotes was rejected.
+     */
     @Override
     public CommandLine createByCommand(String command) {
-        return new CommandLine("bash").addArgument("-c").addArgument(command);
+        return new CommandLine("bash").addArgument("-c").addArgument(command, false);
+    }
+
+    /**
+     * The script is sourced from a copy of the stdin pipe, read to its end before it runs.
+     */
+    @Override
+    public CommandLine createByStdin() {
+        return new CommandLine("bash").addArgument("-c").addArgument("exec 3<&0 </dev/null; . /dev/fd/3", false);
+    }
+
+    @Override
+    public String getExecutable() {
+        return "bash";
     }
 
     @Override
@@ -27,6 +44,11 @@ public class Bash implements Shell {
         return "echo -n $BASH_VERSINFO";
     }
 
+    @Override
+    public String getVersionCommand() {
+        return "echo \"$BASH_VERSION\"; echo \"$BASH_VERSINFO\"";
+    }
+
     @Override
     public String getOutputStatement(String toDisplay) {
         return "echo -n " + toDisplay;
@@ -41,4 +63,9 @@ public class Bash implements Shell {
         return program;
     }
 
+    @Override
+    public String getFileExtension() {
+        return ".sh";
+    }
+
 }
@@ -0,0 +1,99 @@
+package jsr223.shell.bash;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the bash snippets used to run several scripts through one shell process,
+ * each one in its own subshell, or in the shell itself for a {@link BashSession}, and followed
+ * by a marker line on stdout and stderr.
+ */
+public final class BashFrames {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private BashFrames() {
+    }
+
+    /**
+     * @param token an alphanumeric token, unique enough not to appear in script output.
+     * @return the marker written before the trailer of every frame.
+     */
+    public static String marker(String token) {
+        return "\u0001jsr223-" + token + ":";
+    }
+
+    /**
+     * Appends a frame running {@code script} with {@code variables} exported, in a subshell
+     * with stdin closed. The stdout marker is followed by the exit code of the script.
+     */
+    public static StringBuilder appendFrame(StringBuilder sb, String script, Map<String, String> variables, String token) {
+        return appendFrame(sb, script, variables, token, false);
+    }
+
+    /**
+     * @param exitOnFailure makes the shell exit with 0 after the markers when the script failed,
+     *                      so the frames after this one are not run.
+     * @see #appendFrame(StringBuilder, String, Map, String)
+     */
+    public static StringBuilder appendFrame(StringBuilder sb, String script, Map<String, String> variables, String token, boolean exitOnFailure) {
+        sb.append("(\n");
+        appendExports(sb, variables);
+        sb.append("eval ").append(quote(script)).append('\n');
+        sb.append(") </dev/null\n");
+        appendMarkers(sb, token);
+        if (exitOnFailure) {
+            sb.append("[ \"$jsr223_status\" = 0 ] || exit 0\n");
+        }
+        return sb;
+    }
+
+    /**
+     * Appends a frame running {@code script} in the shell itself, with stdin closed, so what it
+     * defines is kept for the next frames. Variables are exported and unset before it runs.
+     */
+    public static StringBuilder appendSessionFrame(StringBuilder sb, String script, Map<String, String> exports, Collection<String> unsets, String token) {
+        appendExports(sb, exports);
+        for (String name : unsets) {
+            if (NAME.matcher(name).matches()) {
+                sb.append("unset -v ").append(name).append('\n');
+            }
+        }
+        sb.append("{\n");
+        sb.append("eval ").append(quote(script)).append('\n');
+        sb.append("} </dev/null\n");
+        return appendMarkers(sb, token);
+    }
+
+    private static StringBuilder appendMarkers(StringBuilder sb, String token) {
+        sb.append("jsr223_status=$?\n");
+        sb.append("printf '\\001jsr223-").append(token).append(":%d\\n' \"$jsr223_status\"\n");
+        sb.append("printf '\\001jsr223-").append(token).append(":\\n' >&2\n");
+        return sb;
+    }
+
+    /**
+     * Appends one {@code export} statement per variable. Names bash cannot hold are skipped.
+     */
+    public static StringBuilder appendExports(StringBuilder sb, Map<String, String> variables) {
+        if (variables != null) {
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                if (NAME.matcher(variable.getKey()).matches()) {
+                    sb.append("export ").append(variable.getKey()).append('=').append(quote(variable.getValue())).append('\n');
+                }
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * Quotes a string as a single bash word.
+     */
+    public static String quote(String value) {
+        if (value == null) {
+            return "''";
+        }
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+}
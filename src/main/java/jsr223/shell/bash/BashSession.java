@@ -0,0 +1,52 @@
+package jsr223.shell.bash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link BashWorker} running every script in the shell itself rather than in a subshell, so
+ * variables, functions, the working directory and sourced files are kept from one evaluation to
+ * the next. A script calling {@code exit} ends the session.
+ * <p>
+ * Only the variables which changed since the previous evaluation are exported, the ones which
+ * are gone are unset. A script changing an exported variable keeps its value until the
+ * variable changes on the Java side.
+ */
+public class BashSession extends BashWorker {
+
+    private final Map<String, String> exported = new HashMap<String, String>();
+
+    /**
+     * @param environment the session starts with, null to inherit the JVM environment.
+     */
+    public BashSession(String charsetName, Map<String, String> environment) throws IOException {
+        super(charsetName, environment);
+    }
+
+    /**
+     * @param variables null to keep the exported ones as they are.
+     */
+    @Override
+    protected StringBuilder appendFrame(StringBuilder sb, String script, Map<String, String> variables, String token) {
+        Map<String, String> exports = new HashMap<String, String>();
+        List<String> unsets = new ArrayList<String>();
+        if (variables != null) {
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                if (!variable.getValue().equals(exported.get(variable.getKey()))) {
+                    exports.put(variable.getKey(), variable.getValue());
+                }
+            }
+            for (String name : exported.keySet()) {
+                if (!variables.containsKey(name)) {
+                    unsets.add(name);
+                }
+            }
+            exported.clear();
+            exported.putAll(variables);
+        }
+        return BashFrames.appendSessionFrame(sb, script, exports, unsets, token);
+    }
+}
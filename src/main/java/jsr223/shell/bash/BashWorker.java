@@ -0,0 +1,215 @@
+package jsr223.shell.bash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived {@code bash -s} process evaluating the scripts written to its stdin.
+ * <p>
+ * Every script runs in its own subshell so variables, functions, traps and the working
+ * directory never leak from one evaluation into the next. Each evaluation is followed by
+ * a marker on stdout, carrying the exit code, and one on stderr, which lets both streams
+ * be split per evaluation.
+ */
+public class BashWorker {
+
+    /** Exit value reported when an evaluation is killed, the same as a SIGTERM'ed bash -c. */
+    public static final int KILLED_EXIT_VALUE = 143;
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private final String token = UUID.randomUUID().toString().replace("-", "");
+
+    private final String charsetName;
+
+    private final Process process;
+
+    private final OutputStream stdin;
+
+    private final FramedOutputStream outFrames;
+
+    private final FramedOutputStream errorFrames;
+
+    private volatile Evaluation current;
+
+    private volatile boolean broken;
+
+    private int evalCount;
+
+    public BashWorker(String charsetName) throws IOException {
+        this(charsetName, null);
+    }
+
+    /**
+     * @param environment the worker starts with, null to inherit the JVM environment.
+     */
+    public BashWorker(String charsetName, Map<String, String> environment) throws IOException {
+        this.charsetName = charsetName;
+        ProcessBuilder processBuilder = new ProcessBuilder("bash", "-s");
+        if (environment != null) {
+            processBuilder.environment().clear();
+            processBuilder.environment().putAll(environment);
+        }
+        this.process = processBuilder.start();
+        this.stdin = process.getOutputStream();
+        byte[] marker = BashFrames.marker(token).getBytes("US-ASCII");
+        this.outFrames = new FramedOutputStream(marker) {
+            @Override
+            protected void frameEnd(String trailer) {
+                Evaluation evaluation = current;
+                if (evaluation != null) {
+                    evaluation.exitValue = Integer.parseInt(trailer.trim());
+                    evaluation.done.countDown();
+                }
+            }
+        };
+        this.errorFrames = new FramedOutputStream(marker) {
+            @Override
+            protected void frameEnd(String trailer) {
+                Evaluation evaluation = current;
+                if (evaluation != null) {
+                    evaluation.done.countDown();
+                }
+            }
+        };
+        int id = COUNTER.incrementAndGet();
+        startReader(process.getInputStream(), outFrames, "jsr223-bash-worker-" + id + "-out");
+        startReader(process.getErrorStream(), errorFrames, "jsr223-bash-worker-" + id + "-err");
+    }
+
+    /**
+     * Runs a script and waits for it to complete.
+     *
+     * @param variables exported for this evaluation only.
+     * @param out receives the script's stdout, may be null.
+     * @param error receives the script's stderr, may be null.
+     * @param timeout in milliseconds, the worker is destroyed when it expires; negative for none.
+     * @return the exit value of the script.
+     * @throws IOException if the worker is not usable or died during the evaluation.
+     */
+    public synchronized int execute(String script, Map<String, String> variables, OutputStream out, OutputStream error, long timeout) throws IOException {
+        if (!isAlive()) {
+            throw new IOException("Bash worker is not running");
+        }
+        Evaluation evaluation = new Evaluation();
+        current = evaluation;
+        outFrames.setTarget(out);
+        errorFrames.setTarget(error);
+        evalCount++;
+        try {
+            String frame = appendFrame(new StringBuilder(), script, variables, token).toString();
+            stdin.write(frame.getBytes(charsetName));
+            stdin.flush();
+            if (timeout < 0) {
+                evaluation.done.await();
+            } else if (!evaluation.done.await(timeout, TimeUnit.MILLISECONDS)) {
+                destroy();
+                return KILLED_EXIT_VALUE;
+            }
+        } catch (InterruptedException e) {
+            destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for bash worker");
+        } catch (IOException e) {
+            destroy();
+            throw e;
+        } finally {
+            current = null;
+            outFrames.setTarget(null);
+            errorFrames.setTarget(null);
+        }
+        if (evaluation.failed) {
+            throw new IOException("Bash worker exited during evaluation");
+        }
+        return evaluation.exitValue;
+    }
+
+    /**
+     * Appends what is written to the stdin of bash to run {@code script}, see {@link BashFrames}.
+     */
+    protected StringBuilder appendFrame(StringBuilder sb, String script, Map<String, String> variables, String token) {
+        return BashFrames.appendFrame(sb, script, variables, token);
+    }
+
+    /**
+     * Health check running a no-op script.
+     */
+    public boolean ping(long timeout) {
+        try {
+            return execute("true", null, null, null, timeout) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public boolean isAlive() {
+        if (broken) {
+            return false;
+        }
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    public synchronized int getEvalCount() {
+        return evalCount;
+    }
+
+    public void destroy() {
+        broken = true;
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            ;
+        }
+        process.destroy();
+    }
+
+    private void readerExited() {
+        broken = true;
+        Evaluation evaluation = current;
+        if (evaluation != null) {
+            evaluation.failed = true;
+            while (evaluation.done.getCount() > 0) {
+                evaluation.done.countDown();
+            }
+        }
+    }
+
+    private void startReader(final InputStream is, final FramedOutputStream frames, String name) {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[8192];
+                try {
+                    int n = is.read(buf);
+                    while (n != -1) {
+                        frames.write(buf, 0, n);
+                        n = is.read(buf);
+                    }
+                } catch (IOException e) {
+                    ;
+                } finally {
+                    readerExited();
+                }
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private static class Evaluation {
+        final CountDownLatch done = new CountDownLatch(2);
+        volatile int exitValue;
+        volatile boolean failed;
+    }
+}
@@ -0,0 +1,169 @@
+package jsr223.shell.bash;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed number of {@link BashWorker}s shared by the engines using the pool, so an
+ * evaluation does not pay for forking and starting a new bash.
+ * <p>
+ * Workers are started lazily or by {@link #prewarm()}, replaced when they die or time out,
+ * and recycled after {@code maxEvals} evaluations, never when it is not positive.
+ */
+public class BashWorkerPool {
+
+    private static final long PING_TIMEOUT = 5000;
+
+    private final int size;
+
+    private final int maxEvals;
+
+    private final String charsetName;
+
+    private final Map<String, String> environment;
+
+    private final Semaphore permits;
+
+    private final LinkedBlockingQueue<BashWorker> idle = new LinkedBlockingQueue<BashWorker>();
+
+    private volatile boolean closed;
+
+    public BashWorkerPool(int size, int maxEvals, String charsetName) {
+        this(size, maxEvals, charsetName, null);
+    }
+
+    /**
+     * @param environment the workers start with, null to inherit the JVM environment.
+     */
+    public BashWorkerPool(int size, int maxEvals, String charsetName, Map<String, String> environment) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        }
+        this.size = size;
+        this.maxEvals = maxEvals;
+        this.charsetName = charsetName;
+        this.environment = environment;
+        this.permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Starts workers until the pool holds {@code size} of them.
+     */
+    public synchronized void prewarm() throws IOException {
+        int started = 0;
+        while (permits.tryAcquire()) {
+            started++;
+        }
+        try {
+            for (int i = idle.size(); i < started; i++) {
+                idle.offer(new BashWorker(charsetName, environment));
+            }
+        } finally {
+            permits.release(started);
+        }
+    }
+
+    /**
+     * Runs a script on an idle worker, waiting for one if all of them are busy.
+     *
+     * @see BashWorker#execute(String, Map, OutputStream, OutputStream, long)
+     */
+    public int execute(String script, Map<String, String> variables, OutputStream out, OutputStream error, long timeout) throws IOException {
+        BashWorker worker = borrow();
+        try {
+            return worker.execute(script, variables, out, error, timeout);
+        } finally {
+            release(worker);
+        }
+    }
+
+    /**
+     * Pings every idle worker and discards the ones not answering.
+     *
+     * @return the number of workers discarded.
+     */
+    public int healthCheck() {
+        List<BashWorker> workers = new ArrayList<BashWorker>();
+        idle.drainTo(workers);
+        int discarded = 0;
+        for (BashWorker worker : workers) {
+            if (worker.ping(PING_TIMEOUT)) {
+                idle.offer(worker);
+            } else {
+                worker.destroy();
+                discarded++;
+            }
+        }
+        return discarded;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Destroys the idle workers, busy ones are destroyed when they are released.
+     */
+    public void close() {
+        closed = true;
+        List<BashWorker> workers = new ArrayList<BashWorker>();
+        idle.drainTo(workers);
+        for (BashWorker worker : workers) {
+            worker.destroy();
+        }
+    }
+
+    /**
+     * Takes an idle worker, or starts one, waiting if all of them are busy. The worker
+     * must be given back with {@link #release(BashWorker)}.
+     */
+    public BashWorker borrow() throws IOException {
+        if (closed) {
+            throw new IOException("Bash worker pool is closed");
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a bash worker");
+        }
+        try {
+            BashWorker worker = idle.poll();
+            while (worker != null && !worker.isAlive()) {
+                worker.destroy();
+                worker = idle.poll();
+            }
+            return worker != null ? worker : new BashWorker(charsetName, environment);
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a borrowed worker, destroyed if it is dead or ran {@code maxEvals} evaluations.
+     */
+    public void release(BashWorker worker) {
+        try {
+            if (!closed && worker.isAlive() && (maxEvals <= 0 || worker.getEvalCount() < maxEvals)) {
+                idle.offer(worker);
+            } else {
+                worker.destroy();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package jsr223.shell.bash;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Splits a byte stream into frames terminated by a marker line. Bytes before the
+ * marker are forwarded to the current target, the text between the marker and the
+ * next line feed is handed to {@link #frameEnd(String)}.
+ * <p>
+ * The first byte of the marker must not appear anywhere else in the marker.
+ */
+public abstract class FramedOutputStream extends OutputStream {
+
+    private static final int LF = 0x0a;
+
+    private final byte[] marker;
+
+    private final StringBuilder trailer = new StringBuilder();
+
+    private volatile OutputStream target;
+
+    private int matched;
+
+    private boolean inTrailer;
+
+    public FramedOutputStream(byte[] marker) {
+        this.marker = marker;
+    }
+
+    public void setTarget(OutputStream target) {
+        this.target = target;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        final int end = off + len;
+        int start = off;
+        int i = off;
+        while (i < end) {
+            final byte c = b[i];
+            if (inTrailer) {
+                i++;
+                start = i;
+                if (c == LF) {
+                    inTrailer = false;
+                    endFrame();
+                } else {
+                    trailer.append((char) (c & 0xff));
+                }
+            } else if (c == marker[matched]) {
+                if (matched == 0) {
+                    forward(b, start, i - start);
+                }
+                matched++;
+                i++;
+                start = i;
+                if (matched == marker.length) {
+                    matched = 0;
+                    inTrailer = true;
+                }
+            } else if (matched > 0) {
+                // the held back bytes were not a marker after all, c is examined again
+                forward(marker, 0, matched);
+                matched = 0;
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        if (!inTrailer && matched == 0) {
+            forward(b, start, end - start);
+        }
+    }
+
+    private void endFrame() throws IOException {
+        final OutputStream os = target;
+        if (os != null) {
+            os.flush();
+        }
+        final String text = trailer.toString();
+        trailer.setLength(0);
+        frameEnd(text);
+    }
+
+    private void forward(final byte[] b, final int off, final int len) throws IOException {
+        final OutputStream os = target;
+        if (os != null && len > 0) {
+            os.write(b, off, len);
+        }
+    }
+
+    /**
+     * Called once a marker line was fully read.
+     *
+     * @param trailer the text following the marker on its line.
+     */
+    protected abstract void frameEnd(String trailer) throws IOException;
+}
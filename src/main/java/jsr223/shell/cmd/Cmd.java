@@ -17,6 +17,16 @@ public class Cmd implements Shell {
         return new CommandLine("cmd").addArgument("/c").addArgument(command);
     }
 
+    @Override
+    public CommandLine createByStdin() {
+        return null;
+    }
+
+    @Override
+    public String getExecutable() {
+        return "cmd";
+    }
+
     @Override
     public String getInstalledVersionCommand() {
         return "echo|set /p=%CmdExtVersion%";
@@ -27,6 +37,11 @@ public class Cmd implements Shell {
         return getInstalledVersionCommand();
     }
 
+    @Override
+    public String getVersionCommand() {
+        return "echo %CmdExtVersion%& echo %CmdExtVersion%";
+    }
+
     @Override
     public String getOutputStatement(String toDisplay) {
         return "echo " + toDisplay;
@@ -41,4 +56,9 @@ public class Cmd implements Shell {
         return program;
     }
 
+    @Override
+    public String getFileExtension() {
+        return ".bat";
+    }
+
 }
@@ -0,0 +1,183 @@
+package jsr223.shell.exec;
+
+import jsr223.shell.Shell;
+import jsr223.shell.ShellHandler;
+import org.apache.commons.exec.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a script as a single command, without a shell: the script is split into words and the
+ * first one is the program started.
+ * <p>
+ * Words are separated by blanks. Single quotes keep what they enclose as is, double quotes keep
+ * blanks and allow {@code \"}, {@code \\} and {@code \$}, a backslash outside quotes keeps the
+ * next character. {@code $name} and {@code ${name}} are replaced by the variable, outside single
+ * quotes, and never split into several words. There is no other shell syntax: no pipes,
+ * redirections, globs or command separators.
+ */
+public class Exec implements Shell {
+
+    /**
+     * Reads the script in the charset of {@link ShellHandler#getCommandCharset()}.
+     */
+    @Override
+    public CommandLine createByFile(File file) {
+        try {
+            return createByCommand(new String(Files.readAllBytes(file.toPath()), ShellHandler.getCommandCharset()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + file, e);
+        }
+    }
+
+    @Override
+    public CommandLine createByCommand(String command) {
+        return createByCommand(command, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param variables replacing {@code $name}, including the environment of the process since
+     *                  the one of the JVM is not looked at; other variables are replaced by nothing.
+     */
+    public CommandLine createByCommand(String command, Map<String, String> variables) {
+        List<String> words = split(command, variables);
+        if (words.isEmpty()) {
+            throw new IllegalArgumentException("No command to run");
+        }
+        CommandLine commandLine = new CommandLine(words.get(0));
+        for (String word : words.subList(1, words.size())) {
+            commandLine.addArgument(word, false);
+        }
+        return commandLine;
+    }
+
+    @Override
+    public CommandLine createByStdin() {
+        return null;
+    }
+
+    @Override
+    public String getExecutable() {
+        return "exec";
+    }
+
+    @Override
+    public String getInstalledVersionCommand() {
+        return null;
+    }
+
+    @Override
+    public String getMajorVersionCommand() {
+        return null;
+    }
+
+    @Override
+    public String getVersionCommand() {
+        return null;
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        return "echo " + toDisplay;
+    }
+
+    /**
+     * @throws IllegalArgumentException unless there is exactly one statement.
+     */
+    @Override
+    public String getProgram(String... statements) {
+        if (statements.length != 1) {
+            throw new IllegalArgumentException("A program is a single command");
+        }
+        return statements[0];
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".cmdline";
+    }
+
+    static List<String> split(String command, Map<String, String> variables) {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        int i = 0;
+        while (i < command.length()) {
+            char c = command.charAt(i++);
+            if (Character.isWhitespace(c)) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+                continue;
+            }
+            inWord = true;
+            if (c == '\'') {
+                int end = command.indexOf('\'', i);
+                if (end == -1) {
+                    throw new IllegalArgumentException("Unterminated ' in " + command);
+                }
+                word.append(command, i, end);
+                i = end + 1;
+            } else if (c == '"') {
+                while (true) {
+                    if (i == command.length()) {
+                        throw new IllegalArgumentException("Unterminated \" in " + command);
+                    }
+                    c = command.charAt(i++);
+                    if (c == '"') {
+                        break;
+                    }
+                    if (c == '\\' && i < command.length() && "\"\\$".indexOf(command.charAt(i)) != -1) {
+                        word.append(command.charAt(i++));
+                    } else if (c == '$') {
+                        i = substitute(command, i, variables, word);
+                    } else {
+                        word.append(c);
+                    }
+                }
+            } else if (c == '\\' && i < command.length()) {
+                word.append(command.charAt(i++));
+            } else if (c == '$') {
+                i = substitute(command, i, variables, word);
+            } else {
+                word.append(c);
+            }
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * Appends the value of the variable named after the {@code $} at {@code start - 1}.
+     *
+     * @return the index following the name.
+     */
+    private static int substitute(String command, int start, Map<String, String> variables, StringBuilder word) {
+        boolean braces = start < command.length() && command.charAt(start) == '{';
+        int begin = braces ? start + 1 : start;
+        int end = begin;
+        while (end < command.length() && (Character.isLetterOrDigit(command.charAt(end)) || command.charAt(end) == '_')) {
+            end++;
+        }
+        if (end == begin || braces && (end == command.length() || command.charAt(end) != '}')) {
+            word.append('$');
+            return start;
+        }
+        String name = command.substring(begin, end);
+        String value = variables.get(name);
+        if (value != null) {
+            word.append(value);
+        }
+        return braces ? end + 1 : end;
+    }
+}
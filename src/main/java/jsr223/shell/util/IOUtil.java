@@ -1,13 +1,30 @@
 package jsr223.shell.util;
 
 import java.io.*;
-import java.util.Scanner;
 
 public class IOUtil {
 
+    /**
+     * @return the whole content of {@code reader}, null if it is empty.
+     */
     public static String toString(Reader reader) {
-        Scanner s = new Scanner(reader).useDelimiter("\\A");
-        return s.hasNext() ? s.next() : null;
+        StringBuilder sb = new StringBuilder();
+        try {
+            append(reader, sb);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    public static StringBuilder append(Reader from, StringBuilder to) throws IOException {
+        char[] buff = new char[8192];
+        int n = from.read(buff);
+        while (n != -1) {
+            to.append(buff, 0, n);
+            n = from.read(buff);
+        }
+        return to;
     }
 
     public static void pipe(Reader from, Writer to) throws IOException {
@@ -26,9 +43,13 @@ public class IOUtil {
     }
 
     public static void closeSilently(OutputStream os) {
-        if (os != null) {
+        closeSilently((Closeable) os);
+    }
+
+    public static void closeSilently(Closeable closeable) {
+        if (closeable != null) {
             try {
-                os.close();
+                closeable.close();
             } catch (IOException e) {
                 ;
             }
@@ -0,0 +1,85 @@
+package jsr223.shell.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes the characters of a reader as they are read, through fixed size buffers.
+ */
+public class ReaderInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Reader reader;
+
+    private final CharsetEncoder encoder;
+
+    /** chars read and not encoded yet, in read mode */
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+    /** bytes encoded and not returned yet, in read mode */
+    private final ByteBuffer bytes;
+
+    private boolean endOfInput;
+
+    private boolean flushed;
+
+    public ReaderInputStream(Reader reader, Charset charset) {
+        this.reader = reader;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate((int) Math.ceil(BUFFER_SIZE * encoder.maxBytesPerChar()));
+        chars.flip();
+        bytes.flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!bytes.hasRemaining()) {
+            if (flushed) {
+                return -1;
+            }
+            fill();
+        }
+        int n = Math.min(len, bytes.remaining());
+        bytes.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void fill() throws IOException {
+        if (!endOfInput) {
+            chars.compact();
+            int n = reader.read(chars);
+            chars.flip();
+            endOfInput = n == -1;
+        }
+        bytes.clear();
+        CoderResult result = encoder.encode(chars, bytes, endOfInput);
+        if (endOfInput && !result.isOverflow()) {
+            flushed = !encoder.flush(bytes).isOverflow();
+        }
+        bytes.flip();
+    }
+}
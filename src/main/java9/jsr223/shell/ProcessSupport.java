@@ -0,0 +1,42 @@
+package jsr223.shell;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Process features depending on the version of the JVM, using the process API of Java 9.
+ */
+final class ProcessSupport {
+
+    private ProcessSupport() {
+    }
+
+    /**
+     * @return a redirect throwing away what the process writes.
+     */
+    static ProcessBuilder.Redirect discard() {
+        return ProcessBuilder.Redirect.DISCARD;
+    }
+
+    /**
+     * Waits for the process to exit without holding its monitor like {@link Process#waitFor()},
+     * which would pin the carrier of a virtual thread.
+     */
+    static int waitFor(Process process) throws InterruptedException {
+        try {
+            return process.onExit().get().exitValue();
+        } catch (ExecutionException e) {
+            return process.waitFor();
+        }
+    }
+
+    /**
+     * Destroys the processes started by {@code process}, so none keeps its output open once it is killed.
+     */
+    static void destroyDescendants(Process process) {
+        try {
+            process.descendants().forEach(ProcessHandle::destroy);
+        } catch (UnsupportedOperationException e) {
+            // a process of the spawn helper, which destroys the descendants itself
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package jsr223.shell;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentiles_are_within_the_bucket_precision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertNear(500000000L, histogram.percentile(0.5));
+        assertNear(990000000L, histogram.percentile(0.99));
+        assertNear(999000000L, histogram.percentile(0.999));
+    }
+
+    @Test
+    public void empty_and_small_values() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.5));
+        histogram.record(-5);
+        histogram.record(3000);
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(3000, histogram.percentile(1));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(actual + " not near " + expected, Math.abs(actual - expected) <= expected * 0.07);
+    }
+}
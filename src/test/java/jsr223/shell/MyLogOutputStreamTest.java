@@ -0,0 +1,87 @@
+package jsr223.shell;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+public class MyLogOutputStreamTest {
+
+    @Test
+    public void splits_lines_on_cr_lf_and_crlf() throws Exception {
+        assertEquals("a\nb\nc\n\nd\n", decode("UTF-8", "a\r\nb\nc\r\rd"));
+    }
+
+    @Test
+    public void keeps_crlf_split_across_writes_as_one_line_break() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        MyLogOutputStream os = new MyLogOutputStream(sb, "UTF-8");
+        os.write("a\r".getBytes("UTF-8"));
+        os.write("\nb".getBytes("UTF-8"));
+        os.close();
+
+        assertEquals("a\nb\n", sb.toString());
+    }
+
+    @Test
+    public void decodes_multi_byte_sequences_split_across_writes() throws Exception {
+        byte[] bytes = "héllo 中国 😀\n".getBytes("UTF-8");
+        StringBuilder sb = new StringBuilder();
+        MyLogOutputStream os = new MyLogOutputStream(sb, "UTF-8");
+        for (byte b : bytes) {
+            os.write(new byte[]{b}, 0, 1);
+        }
+        os.close();
+
+        assertEquals("héllo 中国 😀\n", sb.toString());
+    }
+
+    @Test
+    public void decodes_other_charsets() throws Exception {
+        assertEquals("中国\n", decode("GBK", "中国"));
+        assertEquals("café\n", decode("ISO-8859-1", "café"));
+    }
+
+    @Test
+    public void passes_long_lines_on_in_parts() throws Exception {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+
+        assertEquals(line + "\nend\n", decode("UTF-8", line + "\nend"));
+    }
+
+    @Test
+    public void writers_are_flushed_by_size_not_by_write() throws Exception {
+        final int[] flushes = new int[1];
+        StringWriter writer = new StringWriter() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+        MyLogOutputStream os = new MyLogOutputStream(LineSinks.toWriter(writer, 10, Long.MAX_VALUE / 1000000L), "UTF-8");
+        os.write("a\n".getBytes("UTF-8"));
+        os.write("b\n".getBytes("UTF-8"));
+        assertEquals(0, flushes[0]);
+        os.write("0123456789\n".getBytes("UTF-8"));
+        assertEquals(1, flushes[0]);
+        os.write("c\n".getBytes("UTF-8"));
+        assertEquals(1, flushes[0]);
+        os.close();
+
+        assertEquals(2, flushes[0]);
+        assertEquals("a\nb\n0123456789\nc\n", writer.toString());
+    }
+
+    private static String decode(String charsetName, String text) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        MyLogOutputStream os = new MyLogOutputStream(sb, charsetName);
+        os.write(text.getBytes(charsetName));
+        os.close();
+        return sb.toString();
+    }
+}
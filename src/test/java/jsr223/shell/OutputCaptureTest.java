@@ -0,0 +1,44 @@
+package jsr223.shell;
+
+import org.junit.Test;
+
+import java.io.Reader;
+
+import static org.junit.Assert.assertEquals;
+
+public class OutputCaptureTest {
+
+    @Test
+    public void tail_grows_then_keeps_the_last_characters() throws Exception {
+        OutputCapture capture = new OutputCapture(4, 10, false);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            String part = String.valueOf(i);
+            capture.append(part.toCharArray(), 0, part.length());
+            expected.append(part);
+        }
+
+        String all = expected.toString();
+        assertEquals(all.substring(0, 4) + all.substring(all.length() - 10), capture.toString());
+        assertEquals(all.length() - 14, capture.getTruncatedLength());
+    }
+
+    @Test
+    public void spilled_output_is_read_back_whole() throws Exception {
+        OutputCapture capture = new OutputCapture(3, 5, true);
+        String output = "0123456789abcdefghijklmnopqrstuvwxyz";
+        for (char c : output.toCharArray()) {
+            capture.append(new char[]{c}, 0, 1);
+        }
+
+        Reader reader = capture.openReader();
+        StringBuilder read = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            read.append((char) c);
+        }
+        reader.close();
+        capture.dispose();
+        assertEquals(output, read.toString());
+    }
+}
@@ -0,0 +1,27 @@
+package jsr223.shell;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptFileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void retained_file_outlives_its_release() throws Exception {
+        ScriptFileCache cache = new ScriptFileCache(folder.getRoot(), 0);
+        ScriptFileCache.ScriptFile scriptFile = cache.acquire("echo retained", ".sh", null);
+        cache.retain(scriptFile);
+
+        cache.release(scriptFile);
+        assertTrue(scriptFile.getFile().exists());
+
+        cache.release(scriptFile);
+        assertFalse(scriptFile.getFile().exists());
+    }
+}
@@ -0,0 +1,173 @@
+package jsr223.shell;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ShellResultCacheTest {
+
+    @Test
+    public void fresh_results_are_reused() throws Exception {
+        ShellResultCache cache = new ShellResultCache(10);
+        Evaluation evaluation = new Evaluation(0);
+
+        CommandResult first = cache.get(key("uname"), 60000, evaluation);
+        CommandResult second = cache.get(key("uname"), 60000, evaluation);
+
+        assertEquals(1, evaluation.count.get());
+        assertFalse(first.isCached());
+        assertTrue(second.isCached());
+        assertEquals("out1", second.getOutMessage());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void results_expire_and_failures_are_not_kept() throws Exception {
+        ShellResultCache cache = new ShellResultCache(10);
+        Evaluation evaluation = new Evaluation(0);
+        cache.get(key("uname"), 50, evaluation);
+        Thread.sleep(100);
+        cache.get(key("uname"), 50, evaluation);
+        assertEquals(2, evaluation.count.get());
+
+        Evaluation failing = new Evaluation(1);
+        cache.get(key("false"), 60000, failing);
+        cache.get(key("false"), 60000, failing);
+        assertEquals(2, failing.count.get());
+    }
+
+    @Test
+    public void least_recently_used_results_are_evicted() throws Exception {
+        ShellResultCache cache = new ShellResultCache(2);
+        Evaluation evaluation = new Evaluation(0);
+        cache.get(key("a"), 60000, evaluation);
+        cache.get(key("b"), 60000, evaluation);
+        cache.get(key("a"), 60000, evaluation);
+        cache.get(key("c"), 60000, evaluation);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.get(key("a"), 60000, evaluation).isCached());
+        assertFalse(cache.get(key("b"), 60000, evaluation).isCached());
+    }
+
+    @Test
+    public void identical_evaluations_share_one_run() throws Exception {
+        final ShellResultCache cache = new ShellResultCache(10);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Evaluation evaluation = new Evaluation(0) {
+            @Override
+            public CommandResult call() throws Exception {
+                release.await(10, TimeUnit.SECONDS);
+                return super.call();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<CommandResult>> callers = Collections.nCopies(8, (Callable<CommandResult>) new Callable<CommandResult>() {
+                @Override
+                public CommandResult call() throws Exception {
+                    return cache.get(key("df"), 0, evaluation);
+                }
+            });
+            List<Future<CommandResult>> futures = new ArrayList<Future<CommandResult>>();
+            for (Callable<CommandResult> caller : callers) {
+                futures.add(executor.submit(caller));
+            }
+            while (cache.getSharedCount() < 7) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<CommandResult> future : futures) {
+                assertEquals("out1", future.get().getOutMessage());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, evaluation.count.get());
+        // a ttl of 0 keeps nothing
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void waiters_of_a_cancelled_evaluation_run_it_themselves() throws Exception {
+        final ShellResultCache cache = new ShellResultCache(10);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Evaluation cancelled = new Evaluation(0) {
+            @Override
+            public CommandResult call() throws Exception {
+                release.await(10, TimeUnit.SECONDS);
+                throw new CancellationException();
+            }
+        };
+        final Evaluation evaluation = new Evaluation(0);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<CommandResult> leader = executor.submit(new Callable<CommandResult>() {
+                @Override
+                public CommandResult call() throws Exception {
+                    return cache.get(key("df"), 60000, cancelled);
+                }
+            });
+            while (cache.getMissCount() < 1) {
+                Thread.sleep(10);
+            }
+            Future<CommandResult> waiter = executor.submit(new Callable<CommandResult>() {
+                @Override
+                public CommandResult call() throws Exception {
+                    return cache.get(key("df"), 60000, evaluation);
+                }
+            });
+            while (cache.getSharedCount() < 1) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            try {
+                leader.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CancellationException);
+            }
+            CommandResult result = waiter.get(10, TimeUnit.SECONDS);
+            assertFalse(result.isCached());
+            assertEquals("out1", result.getOutMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, evaluation.count.get());
+    }
+
+    private static ShellResultCache.Key key(String script) {
+        return new ShellResultCache.Key("bash", script, Collections.singletonMap("name", "value"));
+    }
+
+    private static class Evaluation implements Callable<CommandResult> {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        private final int exitValue;
+
+        Evaluation(int exitValue) {
+            this.exitValue = exitValue;
+        }
+
+        @Override
+        public CommandResult call() throws Exception {
+            return new CommandResult().setExitValue(exitValue).setOutMessage("out" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package jsr223.shell;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShellResultsTest {
+
+    @Test
+    public void oldest_results_are_evicted_beyond_the_size() {
+        ShellResults results = new ShellResults(2, 60000);
+        results.put("a", "1");
+        results.put("b", "2");
+        results.put("c", "3");
+
+        assertEquals(2, results.size());
+        assertNull(results.get("a"));
+        assertEquals("2", results.get("b"));
+        assertEquals("3", results.remove("c"));
+        assertNull(results.get("c"));
+        assertEquals(1, results.size());
+    }
+
+    @Test
+    public void republished_result_replaces_the_previous_one() {
+        ShellResults results = new ShellResults(2, 60000);
+        results.put("a", "1");
+        results.put("a", "2");
+        results.put("b", "3");
+
+        assertEquals(2, results.size());
+        assertEquals("2", results.get("a"));
+    }
+
+    @Test
+    public void results_expire() throws Exception {
+        ShellResults results = new ShellResults(10, 50);
+        results.put("a", "1");
+        assertEquals("1", results.get("a"));
+        Thread.sleep(100);
+
+        assertNull(results.get("a"));
+        assertEquals(0, results.size());
+    }
+
+    @Test
+    public void listeners_receive_published_results() {
+        ShellResults results = new ShellResults(10, 60000);
+        final List<String> published = new ArrayList<String>();
+        ResultListener listener = new ResultListener() {
+            @Override
+            public void published(String key, String output) {
+                published.add(key + "=" + output);
+            }
+        };
+        results.addListener(listener);
+        results.put("a", "1");
+        results.removeListener(listener);
+        results.put("b", "2");
+
+        assertEquals(1, published.size());
+        assertEquals("a=1", published.get(0));
+    }
+}
@@ -6,6 +6,8 @@ import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
 public class BashScriptEngineFactoryTest {
 
@@ -26,4 +28,15 @@ public class BashScriptEngineFactoryTest {
         assertNotNull(bashScriptEngine.getFactory().getEngineVersion());
         assertNotNull(bashScriptEngine.getFactory().getLanguageVersion());
     }
+
+    @Test
+    public void testBashScriptEngineVersionsAreProbedFromBash() {
+        assumeTrue(System.getProperty("os.name").contains("Linux"));
+        ScriptEngine bashScriptEngine = new ScriptEngineManager().getEngineByName("bash");
+
+        String engineVersion = bashScriptEngine.getFactory().getEngineVersion();
+        String languageVersion = bashScriptEngine.getFactory().getLanguageVersion();
+        assertTrue(languageVersion.matches("\\d+"));
+        assertTrue(engineVersion.startsWith(languageVersion + "."));
+    }
 }
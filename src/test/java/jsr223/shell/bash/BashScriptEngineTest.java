@@ -1,13 +1,44 @@
 package jsr223.shell.bash;
 
+import jsr223.shell.CommandResult;
+import jsr223.shell.ScriptFileCache;
+import jsr223.shell.ShellCompiledScript;
+import jsr223.shell.ShellCallback;
 import jsr223.shell.ShellEngine;
+import jsr223.shell.ShellFuture;
+import jsr223.shell.ShellHandler;
+import jsr223.shell.ShellMetrics;
+import jsr223.shell.ShellResults;
+import jsr223.shell.ShellThreads;
+import jsr223.shell.ShellTimeouts;
+import jsr223.shell.ShellTimings;
+import jsr223.shell.SpawnClient;
+import jsr223.shell.StreamPumps;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.script.*;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.*;
@@ -149,6 +180,653 @@ public class BashScriptEngineTest {
         assertEquals("aString\naString", contextOutput.toString().trim());
     }
 
+    @Test
+    public void streaming_writes_output_before_exit() throws Exception {
+        final long[] firstWrite = new long[1];
+        Writer timedOutput = new StringWriter() {
+            @Override
+            public void write(String str) {
+                if (firstWrite[0] == 0) {
+                    firstWrite[0] = System.nanoTime();
+                }
+                super.write(str);
+            }
+        };
+        scriptEngine.getContext().setWriter(timedOutput);
+        scriptEngine.put(ShellHandler.KEY_STREAM, true);
+
+        assertEquals(Integer.valueOf(0), scriptEngine.eval("echo first; sleep 1; echo second"));
+        long exited = System.nanoTime();
+
+        assertEquals("first\nsecond", timedOutput.toString().trim());
+        assertTrue(exited - firstWrite[0] > 500000000L);
+    }
+
+    @Test
+    public void streaming_captures_only_when_asked() throws Exception {
+        SimpleScriptContext context = new SimpleScriptContext();
+        context.setWriter(scriptOutput);
+        context.setErrorWriter(scriptError);
+        context.setAttribute(ShellHandler.KEY_STREAM, true, ScriptContext.ENGINE_SCOPE);
+
+        CommandResult notCaptured = new ShellHandler(new Bash()).run("echo out; echo err >&2", context);
+        context.setAttribute(ShellHandler.KEY_CAPTURE, true, ScriptContext.ENGINE_SCOPE);
+        CommandResult captured = new ShellHandler(new Bash()).run("echo out", context);
+
+        assertNull(notCaptured.getOutMessage());
+        assertEquals("err", notCaptured.getErrorMessage().trim());
+        assertEquals("out", captured.getOutMessage().trim());
+        assertEquals("out\nout", scriptOutput.toString().trim());
+        assertEquals("err", scriptError.toString().trim());
+    }
+
+    @Test
+    public void capture_keeps_head_and_tail_and_spills_the_rest() throws Exception {
+        SimpleScriptContext context = new SimpleScriptContext();
+        context.setWriter(scriptOutput);
+        context.setAttribute(ShellHandler.KEY_CAPTURE_HEAD_KB, 1, ScriptContext.ENGINE_SCOPE);
+        context.setAttribute(ShellHandler.KEY_CAPTURE_TAIL_KB, 1, ScriptContext.ENGINE_SCOPE);
+        context.setAttribute(ShellHandler.KEY_CAPTURE_SPILL, true, ScriptContext.ENGINE_SCOPE);
+
+        CommandResult result = new ShellHandler(new Bash()).run("seq 100000", context);
+        try {
+            String out = result.getOutMessage();
+            assertEquals(2048, out.length());
+            assertTrue(out.startsWith("1\n2\n"));
+            assertTrue(out.endsWith("99999\n100000\n"));
+            assertEquals(scriptOutput.toString().length() - 2048, result.getTruncatedOutLength());
+            assertTrue(scriptOutput.toString().contains("\n50000\n"));
+        } finally {
+            result.dispose();
+        }
+    }
+
+    @Test
+    public void capture_drops_the_middle_without_spill() throws Exception {
+        SimpleScriptContext context = new SimpleScriptContext();
+        context.setWriter(scriptOutput);
+        context.setAttribute(ShellHandler.KEY_CAPTURE_HEAD_KB, 1, ScriptContext.ENGINE_SCOPE);
+        context.setAttribute(ShellHandler.KEY_CAPTURE_TAIL_KB, 1, ScriptContext.ENGINE_SCOPE);
+
+        CommandResult result = new ShellHandler(new Bash()).run("seq 100000", context);
+
+        assertEquals(result.getOutMessage(), scriptOutput.toString());
+        assertTrue(result.getTruncatedOutLength() > 0);
+        assertFalse(scriptOutput.toString().contains("\n50000\n"));
+    }
+
+    @Test
+    public void evaluate_compiled_script() throws Exception {
+        ShellCompiledScript compiled = scriptEngine.compile("echo $string");
+        ShellCompiledScript sameScript = scriptEngine.compile(new StringReader("echo $string"));
+        try {
+            int cached = ScriptFileCache.getInstance().size();
+            SimpleBindings bindings = new SimpleBindings();
+            bindings.put("string", "aString");
+            assertEquals(Integer.valueOf(0), compiled.eval(bindings));
+            bindings.put("string", "anotherString");
+            assertEquals(Integer.valueOf(0), sameScript.eval(bindings));
+
+            assertEquals("aString\nanotherString", scriptOutput.toString().trim());
+            assertEquals(cached, ScriptFileCache.getInstance().size());
+        } finally {
+            compiled.release();
+            sameScript.release();
+        }
+    }
+
+    @Test
+    public void evaluate_with_language_reuses_script_file() throws Exception {
+        scriptEngine.put("shell_language", ".sh");
+        scriptEngine.eval("echo 'from a file'");
+        int cached = ScriptFileCache.getInstance().size();
+        scriptEngine.eval("echo 'from a file'");
+
+        assertEquals(cached, ScriptFileCache.getInstance().size());
+        assertEquals("from a file\nfrom a file", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void bindings_override_inherited_environment() throws Exception {
+        scriptEngine.put("HOME", "/overridden");
+
+        assertEquals(Integer.valueOf(0), scriptEngine.eval("echo $HOME ${PATH:+path}"));
+        assertEquals("/overridden path", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void start_from_empty_or_whitelisted_environment() throws Exception {
+        scriptEngine.put("bound", "value");
+        scriptEngine.put(ShellHandler.KEY_ENV, "empty");
+        scriptEngine.eval("echo ${HOME:-nohome} $bound");
+        scriptEngine.put(ShellHandler.KEY_ENV, "whitelist");
+        scriptEngine.put(ShellHandler.KEY_ENV_WHITELIST, "PATH");
+        scriptEngine.eval("echo ${PATH:+path} ${HOME:-nohome} $bound");
+
+        assertEquals("nohome value\npath nohome value", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void timeout_binding_kills_the_process() throws Exception {
+        long fired = ShellTimeouts.getFiredCount();
+        scriptEngine.put(ShellHandler.KEY_TIMEOUT, 200);
+        long start = System.currentTimeMillis();
+        try {
+            scriptEngine.eval("sleep 10");
+            fail();
+        } catch (ScriptException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        assertEquals(fired + 1, ShellTimeouts.getFiredCount());
+
+        scriptEngine.put(ShellHandler.KEY_TIMEOUT, 60000);
+        scriptEngine.put(ShellHandler.KEY_DEADLINE, System.currentTimeMillis() + 200);
+        try {
+            scriptEngine.eval("sleep 10");
+            fail();
+        } catch (ScriptException e) {
+            assertTrue(System.currentTimeMillis() - start < 10000);
+        }
+    }
+
+    @Test
+    public void negative_timeout_never_kills_the_process() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_TIMEOUT, -1);
+
+        assertEquals(0, scriptEngine.eval("sleep 0.3; echo done"));
+        assertEquals("done", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void shared_pumps_copy_all_the_output() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_PUMP, "shared");
+        for (int i = 0; i < 5; i++) {
+            scriptOutput.getBuffer().setLength(0);
+            scriptError.getBuffer().setLength(0);
+            assertEquals(Integer.valueOf(0), scriptEngine.eval("seq 20000; echo done >&2"));
+            assertTrue(scriptOutput.toString().endsWith("19999\n20000\n"));
+            assertEquals("done\n", scriptError.toString());
+        }
+        assertEquals(0, StreamPumps.getRegisteredCount());
+    }
+
+    @Test
+    public void blocked_writers_do_not_hold_the_shared_pumps() throws Exception {
+        final CountDownLatch unblocked = new CountDownLatch(1);
+        Writer blockingWriter = new Writer() {
+            @Override
+            public void write(char[] chars, int off, int len) {
+                try {
+                    unblocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<ShellFuture> futures = new ArrayList<ShellFuture>();
+        try {
+            // more than the shared pump threads
+            for (int i = 0; i < 4; i++) {
+                ShellEngine blocked = new ShellEngine(new Bash());
+                blocked.getContext().setWriter(blockingWriter);
+                blocked.getContext().setErrorWriter(blockingWriter);
+                blocked.put(ShellHandler.KEY_PUMP, "shared");
+                blocked.put(ShellHandler.KEY_STREAM, true);
+                futures.add(blocked.evalAsync("seq 200000", executor));
+            }
+            Thread.sleep(300);
+
+            scriptEngine.put(ShellHandler.KEY_PUMP, "shared");
+            assertEquals(0, scriptEngine.evalAsync("seq 20000", executor).get(10, TimeUnit.SECONDS).getExitValue());
+            assertTrue(scriptOutput.toString().endsWith("20000\n"));
+        } finally {
+            unblocked.countDown();
+            for (ShellFuture future : futures) {
+                future.get(30, TimeUnit.SECONDS).dispose();
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void evaluate_asynchronously() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CountDownLatch completed = new CountDownLatch(1);
+            final AtomicInteger exitValue = new AtomicInteger(-1);
+            ShellFuture future = scriptEngine.evalAsync("echo async; exit 2", scriptEngine.getContext(), executor, new ShellCallback() {
+                @Override
+                public void completed(CommandResult commandResult) {
+                    exitValue.set(commandResult.getExitValue());
+                    completed.countDown();
+                }
+
+                @Override
+                public void failed(Throwable cause) {
+                }
+
+                @Override
+                public void cancelled() {
+                }
+            });
+            CommandResult commandResult = future.get(10, TimeUnit.SECONDS);
+            assertEquals(2, commandResult.getExitValue());
+            assertEquals("async", commandResult.getOutMessage().trim());
+            commandResult.dispose();
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+            assertEquals(2, exitValue.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cancel_asynchronous_evaluation_destroys_the_process() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            ShellFuture future = scriptEngine.evalAsync("sleep 10", executor);
+            Thread.sleep(200);
+            long start = System.currentTimeMillis();
+            assertTrue(future.cancel(true));
+            assertTrue(future.isCancelled());
+            // the executor thread is free again once the process is destroyed
+            CommandResult commandResult = scriptEngine.evalAsync("echo next", executor).get(10, TimeUnit.SECONDS);
+            assertEquals("next", commandResult.getOutMessage().trim());
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void evaluate_batch_in_one_process() throws Exception {
+        Bindings first = new SimpleBindings();
+        first.put("name", "first");
+        Bindings second = new SimpleBindings();
+        second.put("name", "second");
+        // replaced by the bindings of the first two scripts
+        scriptEngine.put("name", asList("engine"));
+        List<CommandResult> results = scriptEngine.evalBatch(
+                asList("echo $name ${name_0-unset}; echo $$", "echo $name >&2; echo $$; exit 3", "echo $$; echo $name_0"),
+                asList(first, second), false);
+
+        assertEquals(3, results.size());
+        assertEquals(0, results.get(0).getExitValue());
+        assertEquals(3, results.get(1).getExitValue());
+        assertEquals(0, results.get(2).getExitValue());
+        String[] firstLines = results.get(0).getOutMessage().split("\n");
+        assertEquals("first unset", firstLines[0]);
+        assertEquals("second", results.get(1).getErrorMessage().trim());
+        assertEquals("", results.get(0).getErrorMessage().trim());
+        // $$ is the pid of the shell running the batch
+        assertEquals(firstLines[1], results.get(1).getOutMessage().trim());
+        assertEquals(firstLines[1] + "\nengine", results.get(2).getOutMessage().trim());
+        assertTrue(scriptOutput.toString().startsWith("first unset\n"));
+        for (CommandResult result : results) {
+            result.dispose();
+        }
+    }
+
+    @Test
+    public void evaluate_batch_fail_fast() throws Exception {
+        ShellMetrics.EvalMetrics before = ShellMetrics.get("bash", ShellMetrics.FAILURE);
+        long failures = before == null ? 0 : before.getCount();
+        List<CommandResult> results = scriptEngine.evalBatch(asList("true", "false", "echo never"),
+                Collections.<Bindings>emptyList(), true);
+
+        assertEquals(2, results.size());
+        assertEquals(1, results.get(1).getExitValue());
+        assertFalse(scriptOutput.toString().contains("never"));
+        assertEquals(failures + 1, ShellMetrics.get("bash", ShellMetrics.FAILURE).getCount());
+        assertTrue(results.get(0).getTimings().getNanos(ShellTimings.Phase.RUNTIME) > 0);
+    }
+
+    @Test
+    public void timings_are_recorded_and_exposed() throws Exception {
+        ShellMetrics.EvalMetrics before = ShellMetrics.get("bash", ShellMetrics.FAILURE);
+        long failures = before == null ? 0 : before.getCount();
+        CommandResult commandResult = new ShellHandler(new Bash()).run("sleep 0.1; echo out; exit 1", scriptEngine.getContext());
+
+        ShellTimings timings = commandResult.getTimings();
+        assertTrue(timings.getNanos(ShellTimings.Phase.SPAWN) > 0);
+        assertFalse(timings.isTimed(ShellTimings.Phase.SCRIPT_FILE));
+        assertTrue(timings.getMillis(ShellTimings.Phase.FIRST_OUTPUT) >= 100);
+        assertTrue(timings.getNanos(ShellTimings.Phase.RUNTIME) >= timings.getNanos(ShellTimings.Phase.FIRST_OUTPUT));
+        assertTrue(timings.getNanos(ShellTimings.Phase.TOTAL) >= timings.getNanos(ShellTimings.Phase.RUNTIME));
+        assertEquals(failures + 1, ShellMetrics.get("bash", ShellMetrics.FAILURE).getCount());
+
+        ObjectName name = new ObjectName("jsr223.shell:type=ShellMetrics,shell=\"bash\",status=failure");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(failures + 1, server.getAttribute(name, "Count"));
+        assertTrue((Double) server.getAttribute(name, "RuntimeP99") >= 90);
+    }
+
+    @Test
+    public void output_is_published_under_the_sequence_number() throws Exception {
+        String key = ShellHandler.UNIQUE_SEQUENCE_NO + System.nanoTime();
+        scriptEngine.put(key, "1");
+        scriptEngine.eval("echo published");
+
+        assertEquals("published\n", ShellResults.getInstance().remove(key));
+        assertNull(System.getProperty(key));
+    }
+
+    @Test
+    public void stdin_from_streams_channels_and_readers() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_STDIN, new ByteArrayInputStream("from stream\n".getBytes("UTF-8")));
+        scriptEngine.eval("cat");
+        scriptEngine.put(ShellHandler.KEY_STDIN, Channels.newChannel(new ByteArrayInputStream("from channel\n".getBytes("UTF-8"))));
+        scriptEngine.eval("cat");
+        scriptEngine.put(ShellHandler.KEY_STDIN, new StringReader("from reader\n"));
+        scriptEngine.eval("cat");
+        scriptEngine.getContext().setReader(new StringReader("from context\n"));
+        scriptEngine.put(ShellHandler.KEY_STDIN, true);
+        scriptEngine.eval("cat");
+
+        assertEquals("from stream\nfrom channel\nfrom reader\nfrom context\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void stdin_from_file() throws Exception {
+        File input = File.createTempFile("stdin", ".txt");
+        try {
+            FileUtils.writeStringToFile(input, "1\n2\n3\n", "UTF-8");
+            scriptEngine.put(ShellHandler.KEY_STDIN, input);
+            scriptEngine.eval("wc -l");
+
+            assertEquals("3", scriptOutput.toString().trim());
+        } finally {
+            input.delete();
+        }
+    }
+
+    @Test
+    public void unread_stdin_does_not_hold_the_exit() throws Exception {
+        // never ends
+        PipedOutputStream source = new PipedOutputStream();
+        scriptEngine.put(ShellHandler.KEY_STDIN, new PipedInputStream(source));
+        List<Thread> before = stdinThreads();
+        long start = System.currentTimeMillis();
+        assertEquals(Integer.valueOf(0), scriptEngine.eval("echo done"));
+
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals("done", scriptOutput.toString().trim());
+        List<Thread> copying = stdinThreads();
+        copying.removeAll(before);
+        for (Thread thread : copying) {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+        source.close();
+    }
+
+    private static List<Thread> stdinThreads() {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("jsr223-shell-stdin".equals(thread.getName()) && thread.isAlive()) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    @Test
+    public void evaluate_large_script_from_reader() throws Exception {
+        StringBuilder largeScript = new StringBuilder("read line; echo \"[$line]\"\n");
+        for (int i = 0; i < 20000; i++) {
+            largeScript.append("echo aString").append(i).append('\n');
+        }
+        largeScript.append("exit 0\n");
+
+        assertEquals(Integer.valueOf(0), scriptEngine.eval(new StringReader(largeScript.toString())));
+        assertTrue(scriptOutput.toString().startsWith("[]\naString0\n"));
+        assertTrue(scriptOutput.toString().endsWith("aString19999\n"));
+    }
+
+    @Test
+    public void scripts_passed_as_argument_keep_their_quotes() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_SCRIPT_DELIVERY, ShellHandler.DELIVERY_ARGUMENT);
+        // quoted by commons-exec, the first one ran as a command named after the whole script
+        // and the second one was rejected for mixing single and double quotes
+        scriptEngine.eval("echo \"a  b\"");
+        scriptEngine.eval("echo \"c\" 'd'");
+
+        assertEquals("a  b\nc d\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void script_delivery_can_be_chosen() throws Exception {
+        for (String delivery : asList(ShellHandler.DELIVERY_ARGUMENT, ShellHandler.DELIVERY_STDIN, ShellHandler.DELIVERY_FILE)) {
+            scriptEngine.put(ShellHandler.KEY_SCRIPT_DELIVERY, delivery);
+            scriptOutput.getBuffer().setLength(0);
+            try {
+                scriptEngine.eval("echo " + delivery + "; exit 3");
+                fail();
+            } catch (ScriptException e) {
+                assertTrue(e.getMessage().contains("exit code 3"));
+            }
+            assertEquals(delivery, scriptOutput.toString().trim());
+        }
+    }
+
+    @Test
+    public void process_backend_pipes_output_and_honours_timeout() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_BACKEND, ShellHandler.BACKEND_PROCESS);
+        scriptEngine.put(ShellHandler.KEY_STDIN, new StringReader("input\n"));
+        assertEquals(Integer.valueOf(0), scriptEngine.eval("cat; echo oops >&2"));
+        assertEquals("input\n", scriptOutput.toString());
+        assertEquals("oops\n", scriptError.toString());
+
+        scriptEngine.put(ShellHandler.KEY_TIMEOUT, 200);
+        long start = System.currentTimeMillis();
+        try {
+            scriptEngine.eval("sleep 10");
+            fail();
+        } catch (ScriptException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void output_can_be_discarded_merged_or_redirected_to_files() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_OUT_REDIRECT, ShellHandler.REDIRECT_DISCARD);
+        scriptEngine.eval("echo discarded; echo kept >&2");
+        assertEquals("", scriptOutput.toString());
+        assertEquals("kept\n", scriptError.toString());
+
+        scriptError.getBuffer().setLength(0);
+        scriptEngine.put(ShellHandler.KEY_OUT_REDIRECT, ShellHandler.REDIRECT_PIPE);
+        scriptEngine.put(ShellHandler.KEY_ERROR_REDIRECT, ShellHandler.REDIRECT_OUT);
+        scriptEngine.eval("echo out; echo error >&2");
+        assertEquals("out\nerror\n", scriptOutput.toString());
+        assertEquals("", scriptError.toString());
+
+        File file = File.createTempFile("redirect", ".txt");
+        try {
+            scriptOutput.getBuffer().setLength(0);
+            scriptEngine.put(ShellHandler.KEY_OUT_REDIRECT, file);
+            scriptEngine.eval("echo first; echo second >&2");
+            scriptEngine.put(ShellHandler.KEY_OUT_REDIRECT, ProcessBuilder.Redirect.appendTo(file));
+            scriptEngine.put(ShellHandler.KEY_ERROR_REDIRECT, ShellHandler.REDIRECT_PIPE);
+            scriptEngine.eval("echo third; echo fourth >&2");
+
+            assertEquals("first\nsecond\nthird\n", FileUtils.readFileToString(file, "UTF-8"));
+            assertEquals("", scriptOutput.toString());
+            assertEquals("fourth\n", scriptError.toString());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void virtual_threads_mode_evaluates_scripts() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_THREADS, ShellThreads.VIRTUAL);
+        scriptEngine.put(ShellHandler.KEY_STDIN, new StringReader("input\n"));
+        assertEquals(Integer.valueOf(0), scriptEngine.eval("cat; echo oops >&2"));
+        assertEquals("input\n", scriptOutput.toString());
+        assertEquals("oops\n", scriptError.toString());
+
+        scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE).remove(ShellHandler.KEY_STDIN);
+        CommandResult commandResult = scriptEngine.evalAsync("echo async").get(10, TimeUnit.SECONDS);
+        assertEquals(0, commandResult.getExitValue());
+        commandResult.dispose();
+        assertTrue(scriptOutput.toString().endsWith("async\n"));
+    }
+
+    @Test
+    public void spawn_helper_starts_the_processes() throws Exception {
+        assumeTrue(SpawnClient.isSupported());
+        scriptEngine.put(ShellHandler.KEY_SPAWN, ShellHandler.SPAWN_HELPER);
+        scriptEngine.put("bound", "value");
+        scriptEngine.put(ShellHandler.KEY_STDIN, new StringReader("input\n"));
+        assertEquals(Integer.valueOf(0), scriptEngine.eval("cat; echo $bound; seq 100000 | tail -1; echo oops >&2"));
+        assertEquals("input\nvalue\n100000\n", scriptOutput.toString());
+        assertEquals("oops\n", scriptError.toString());
+
+        scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE).remove(ShellHandler.KEY_STDIN);
+        scriptOutput.getBuffer().setLength(0);
+        scriptEngine.eval("cat /proc/$PPID/cmdline | tr '\\0' ' '");
+        assertTrue(scriptOutput.toString().contains("jsr223.shell.SpawnHelper"));
+
+        File file = File.createTempFile("spawn", ".txt");
+        try {
+            scriptEngine.put(ShellHandler.KEY_OUT_REDIRECT, file);
+            scriptEngine.eval("echo to file");
+            assertEquals("to file\n", FileUtils.readFileToString(file, "UTF-8"));
+        } finally {
+            file.delete();
+        }
+
+        scriptEngine.put(ShellHandler.KEY_TIMEOUT, 200);
+        long start = System.currentTimeMillis();
+        try {
+            scriptEngine.eval("sleep 10");
+            fail();
+        } catch (ScriptException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void cached_results_are_reused() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_CACHE, true);
+        scriptEngine.put("probe", "cached_results_are_reused");
+        scriptEngine.eval("echo $probe $RANDOM$RANDOM");
+        String first = scriptOutput.toString();
+        scriptEngine.eval("echo $probe $RANDOM$RANDOM");
+
+        assertEquals(first + first, scriptOutput.toString());
+
+        scriptEngine.put(ShellHandler.KEY_CACHE, false);
+        scriptEngine.eval("echo $probe $RANDOM$RANDOM");
+        assertNotEquals(first, scriptOutput.toString().substring(2 * first.length()));
+    }
+
+    @Test
+    public void cache_keys_leave_out_result_names_and_options() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_CACHE, true);
+        scriptEngine.put("probe", "cache_keys_leave_out_result_names_and_options");
+        String firstKey = ShellHandler.UNIQUE_SEQUENCE_NO + System.nanoTime();
+        scriptEngine.put(firstKey, "1");
+        scriptEngine.eval("echo $probe $RANDOM$RANDOM");
+        String first = scriptOutput.toString();
+        scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE).clear();
+        scriptEngine.put(ShellHandler.KEY_CACHE, true);
+        scriptEngine.put(ShellHandler.KEY_TIMEOUT, 60000);
+        scriptEngine.put("probe", "cache_keys_leave_out_result_names_and_options");
+        String secondKey = ShellHandler.UNIQUE_SEQUENCE_NO + System.nanoTime();
+        scriptEngine.put(secondKey, "2");
+        scriptEngine.eval("echo $probe $RANDOM$RANDOM");
+
+        assertEquals(first + first, scriptOutput.toString());
+        assertEquals(first, ShellResults.getInstance().remove(firstKey));
+        assertEquals(first, ShellResults.getInstance().remove(secondKey));
+    }
+
+    @Test
+    public void streamed_results_are_captured_for_the_cache() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_CACHE, true);
+        scriptEngine.put(ShellHandler.KEY_STREAM, true);
+        scriptEngine.put("probe", "streamed_results_are_captured_for_the_cache");
+        scriptEngine.eval("echo $probe $RANDOM$RANDOM");
+        String first = scriptOutput.toString();
+        CommandResult cached = new ShellHandler(new Bash()).run("echo $probe $RANDOM$RANDOM", scriptEngine.getContext());
+
+        assertTrue(cached.isCached());
+        assertEquals(first + first, scriptOutput.toString());
+    }
+
+    @Test
+    public void truncated_results_are_not_cached() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_CACHE, true);
+        scriptEngine.put(ShellHandler.KEY_CAPTURE_HEAD_KB, 1);
+        scriptEngine.put(ShellHandler.KEY_CAPTURE_TAIL_KB, 1);
+        scriptEngine.put("probe", "truncated_results_are_not_cached");
+        scriptEngine.eval("echo $probe; seq 10000");
+        CommandResult second = new ShellHandler(new Bash()).run("echo $probe; seq 10000", scriptEngine.getContext());
+
+        assertFalse(second.isCached());
+        second.dispose();
+    }
+
+    @Test
+    public void nested_bindings_are_flattened() throws Exception {
+        scriptEngine.put("nested", asList(asList("a", "b"), singletonMap("key", new String[]{"c"})));
+
+        scriptEngine.eval("echo $nested_0_1 $nested_1_key_0");
+
+        assertEquals("b c", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void bindings_nested_in_themselves_are_flattened_once() throws Exception {
+        List<Object> cyclic = new ArrayList<Object>();
+        cyclic.add("a");
+        cyclic.add(cyclic);
+        List<String> shared = asList("s");
+        scriptEngine.put("cyclic", cyclic);
+        scriptEngine.put("twice", asList(shared, shared));
+
+        scriptEngine.eval("echo $cyclic_0 ${cyclic_1_0-unset} $twice_0_0 $twice_1_0");
+
+        assertEquals("a unset s s", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void large_bindings_are_passed_in_a_file() throws Exception {
+        List<String> large = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++) {
+            large.add("value " + i + "\nline");
+        }
+        scriptEngine.put("large", large);
+        scriptEngine.put("small", "in env");
+        scriptEngine.put(ShellHandler.KEY_BINDINGS_FILE_THRESHOLD, 65536);
+
+        scriptEngine.eval("echo \"${large_0-unset}|$small|$(jsr223_binding large_2)|\"; bash -c 'jsr223_binding large_1'; echo; "
+                + "jsr223_binding missing || echo missing; echo \"$JSR223_BINDINGS\"; "
+                + "for ((i = 0; i < 20000; i++)); do jsr223_binding large_$i last; done; echo \"${last%%$'\\n'*}\"; "
+                + "stat -c %a \"$JSR223_BINDINGS\"");
+
+        String[] lines = scriptOutput.toString().trim().split("\n");
+        assertEquals("unset|in env|value 2", lines[0]);
+        assertEquals("line|", lines[1]);
+        assertEquals("value 1", lines[2]);
+        assertEquals("line", lines[3]);
+        assertEquals("missing", lines[4]);
+        assertFalse(new File(lines[5]).exists());
+        assertEquals("value 19999", lines[6]);
+        assertEquals("600", lines[7]);
+    }
+
     @Ignore("slow")
     @Test
     public void evaluate_script_with_large_output() throws Exception {
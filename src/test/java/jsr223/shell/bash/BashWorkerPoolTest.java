@@ -0,0 +1,133 @@
+package jsr223.shell.bash;
+
+import jsr223.shell.ShellEngine;
+import jsr223.shell.ShellFuture;
+import jsr223.shell.ShellHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.script.ScriptException;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class BashWorkerPoolTest {
+
+    private BashWorkerPool workerPool;
+    private ShellEngine scriptEngine;
+    private StringWriter scriptOutput;
+    private StringWriter scriptError;
+
+    @Before
+    public void runOnlyOnLinux() {
+        assumeTrue(System.getProperty("os.name").contains("Linux"));
+    }
+
+    @Before
+    public void setup() {
+        workerPool = new BashWorkerPool(2, 3, "UTF-8");
+        scriptEngine = new ShellEngine(new Bash(), workerPool);
+        scriptOutput = new StringWriter();
+        scriptEngine.getContext().setWriter(scriptOutput);
+        scriptError = new StringWriter();
+        scriptEngine.getContext().setErrorWriter(scriptError);
+    }
+
+    @After
+    public void closePool() {
+        if (workerPool != null) {
+            workerPool.close();
+        }
+    }
+
+    @Test
+    public void evaluate_echo_command() throws Exception {
+        Integer returnCode = (Integer) scriptEngine.eval("echo hello; echo -n world >&2");
+
+        assertEquals(Integer.valueOf(0), returnCode);
+        assertEquals("hello", scriptOutput.toString().trim());
+        assertEquals("world", scriptError.toString().trim());
+    }
+
+    @Test
+    public void negative_timeout_waits_for_the_script() throws Exception {
+        scriptEngine.put(ShellHandler.KEY_TIMEOUT, -1);
+
+        assertEquals(0, scriptEngine.eval("sleep 0.3; echo done"));
+        assertEquals("done", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void evaluate_exit_code() throws Exception {
+        try {
+            scriptEngine.eval("echo failing >&2; exit 3");
+            fail();
+        } catch (ScriptException e) {
+            assertTrue(e.getMessage().contains("exit code 3"));
+        }
+        assertEquals(Integer.valueOf(0), scriptEngine.eval("true"));
+    }
+
+    @Test
+    public void evaluate_use_bindings() throws Exception {
+        scriptEngine.put("string", "it's a string");
+        scriptEngine.put("integer", 42);
+
+        assertEquals(Integer.valueOf(0), scriptEngine.eval("echo $string $integer"));
+        assertEquals("it's a string 42", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void state_does_not_leak_between_evaluations() throws Exception {
+        workerPool.prewarm();
+        assertEquals(2, workerPool.getIdleCount());
+        for (int i = 0; i < 4; i++) {
+            scriptEngine.eval("echo ${leaked:-clean}; leaked=dirty; export leaked; cd /");
+        }
+        scriptEngine.put("bound", "value");
+        scriptEngine.eval("true");
+        scriptEngine.getBindings(javax.script.ScriptContext.ENGINE_SCOPE).remove("bound");
+        scriptEngine.eval("echo ${bound:-unbound}");
+
+        assertEquals("clean\nclean\nclean\nclean\nunbound", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void dead_worker_is_replaced() throws Exception {
+        try {
+            scriptEngine.eval("kill -9 $$");
+            fail();
+        } catch (RuntimeException e) {
+            // the worker running the script was killed
+        }
+        assertEquals(Integer.valueOf(0), scriptEngine.eval("echo alive"));
+        assertEquals("alive", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void health_check_keeps_live_workers() throws Exception {
+        workerPool.prewarm();
+
+        assertEquals(0, workerPool.healthCheck());
+        assertEquals(2, workerPool.getIdleCount());
+    }
+
+    @Test
+    public void cancel_destroys_the_worker() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            ShellFuture future = scriptEngine.evalAsync("sleep 10", executor);
+            Thread.sleep(500);
+            long start = System.currentTimeMillis();
+            assertTrue(future.cancel(true));
+            assertEquals(Integer.valueOf(0), scriptEngine.eval("true"));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package jsr223.shell.bash;
+
+import jsr223.shell.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class LineSubscriberTest {
+
+    private ShellEngine scriptEngine;
+    private ExecutorService executor;
+
+    @Before
+    public void runOnlyOnLinux() {
+        assumeTrue(System.getProperty("os.name").contains("Linux"));
+    }
+
+    @Before
+    public void setup() {
+        scriptEngine = new ShellEngine(new Bash());
+        scriptEngine.getContext().setWriter(new StringWriter());
+        scriptEngine.getContext().setErrorWriter(new StringWriter());
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void lines_of_both_streams_are_delivered() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        scriptEngine.put(ShellHandler.KEY_OUT_SUBSCRIBER, subscriber);
+        scriptEngine.put(ShellHandler.KEY_ERROR_SUBSCRIBER, subscriber);
+        scriptEngine.eval("echo one; echo two; echo oops >&2");
+
+        assertEquals(3, subscriber.lines.size());
+        assertEquals(1, subscriber.subscribed.get());
+        assertEquals(0, subscriber.completed.getCount());
+        OutputLine two = null;
+        for (OutputLine line : subscriber.lines) {
+            if (line.getText().equals("two")) {
+                two = line;
+            }
+            if (line.getStream() == OutputLine.Stream.STDERR) {
+                assertEquals("oops", line.getText());
+                assertEquals(0, line.getSequence());
+            }
+        }
+        assertNotNull(two);
+        assertEquals(OutputLine.Stream.STDOUT, two.getStream());
+        assertEquals(1, two.getSequence());
+        assertFalse(two.isPartial());
+    }
+
+    @Test
+    public void slow_subscriber_throttles_the_process() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(10);
+        scriptEngine.put(ShellHandler.KEY_OUT_SUBSCRIBER, subscriber);
+        ShellFuture future = scriptEngine.evalAsync("seq 200000", executor);
+
+        Thread.sleep(500);
+        // the pipe is full, seq is blocked
+        assertFalse(future.isDone());
+        assertEquals(10, subscriber.lines.size());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        CommandResult commandResult = future.get(30, TimeUnit.SECONDS);
+        commandResult.dispose();
+        assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(200000, subscriber.lines.size());
+        assertEquals("200000", subscriber.lines.get(199999).getText());
+    }
+
+    @Test
+    public void no_demand_until_the_timeout_is_an_error() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        scriptEngine.put(ShellHandler.KEY_OUT_SUBSCRIBER, subscriber);
+        scriptEngine.put(ShellHandler.KEY_TIMEOUT, 300);
+        long start = System.currentTimeMillis();
+        CommandResult commandResult = scriptEngine.evalAsync("seq 200000", executor).get(30, TimeUnit.SECONDS);
+
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertTrue(commandResult.getExitValue() != 0);
+        assertNotNull(subscriber.error);
+        commandResult.dispose();
+    }
+
+    @Test
+    public void stalled_subscribers_do_not_hold_the_shared_pumps() throws Exception {
+        ExecutorService stalledExecutor = Executors.newCachedThreadPool();
+        List<RecordingSubscriber> subscribers = new ArrayList<RecordingSubscriber>();
+        List<ShellFuture> futures = new ArrayList<ShellFuture>();
+        try {
+            // more than the shared pump threads
+            for (int i = 0; i < 4; i++) {
+                ShellEngine stalled = new ShellEngine(new Bash());
+                stalled.getContext().setWriter(new StringWriter());
+                stalled.getContext().setErrorWriter(new StringWriter());
+                RecordingSubscriber subscriber = new RecordingSubscriber(0);
+                stalled.put(ShellHandler.KEY_PUMP, "shared");
+                stalled.put(ShellHandler.KEY_TIMEOUT, -1);
+                stalled.put(ShellHandler.KEY_OUT_SUBSCRIBER, subscriber);
+                subscribers.add(subscriber);
+                futures.add(stalled.evalAsync("seq 200000", stalledExecutor));
+            }
+            Thread.sleep(300);
+
+            scriptEngine.put(ShellHandler.KEY_PUMP, "shared");
+            CommandResult commandResult = scriptEngine.evalAsync("seq 20000", executor).get(10, TimeUnit.SECONDS);
+            assertEquals(0, commandResult.getExitValue());
+            assertTrue(commandResult.getOutMessage().endsWith("20000\n"));
+            commandResult.dispose();
+        } finally {
+            for (RecordingSubscriber subscriber : subscribers) {
+                subscriber.subscription.request(Long.MAX_VALUE);
+            }
+            for (ShellFuture future : futures) {
+                future.get(30, TimeUnit.SECONDS).dispose();
+            }
+            stalledExecutor.shutdownNow();
+        }
+    }
+
+    private static class RecordingSubscriber implements LineSubscriber {
+
+        private final long initialDemand;
+
+        private final List<OutputLine> lines = Collections.synchronizedList(new ArrayList<OutputLine>());
+
+        private final AtomicInteger subscribed = new AtomicInteger();
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        private volatile LineSubscription subscription;
+
+        private volatile Throwable error;
+
+        RecordingSubscriber(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(LineSubscription subscription) {
+            this.subscription = subscription;
+            subscribed.incrementAndGet();
+            if (initialDemand > 0) {
+                subscription.request(initialDemand);
+            }
+        }
+
+        @Override
+        public void onLine(OutputLine line) {
+            lines.add(line);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+            error = cause;
+        }
+    }
+}
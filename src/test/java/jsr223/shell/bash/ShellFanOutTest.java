@@ -0,0 +1,155 @@
+package jsr223.shell.bash;
+
+import jsr223.shell.CommandResult;
+import jsr223.shell.FanOutListener;
+import jsr223.shell.ShellEngine;
+import jsr223.shell.ShellFanOut;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ShellFanOutTest {
+
+    private ShellEngine scriptEngine;
+
+    @Before
+    public void runOnlyOnLinux() {
+        assumeTrue(System.getProperty("os.name").contains("Linux"));
+    }
+
+    @Before
+    public void setup() {
+        scriptEngine = new ShellEngine(new Bash());
+    }
+
+    @Test
+    public void results_in_input_order() throws Exception {
+        final List<String> outputs = Collections.synchronizedList(new ArrayList<String>());
+        ShellFanOut.Stats stats = new ShellFanOut(scriptEngine).setParallelism(4).run(
+                "sleep 0.0$((10 - i)); echo $i; [ $i != 3 ]", inputs(10), new FanOutListener() {
+                    @Override
+                    public void completed(int index, Bindings bindings, CommandResult commandResult) {
+                        assertEquals(String.valueOf(index), commandResult.getOutMessage().trim());
+                        outputs.add(commandResult.getOutMessage().trim());
+                    }
+
+                    @Override
+                    public void failed(int index, Bindings bindings, Throwable cause) {
+                        fail();
+                    }
+                });
+
+        assertEquals(asStrings(10), outputs);
+        assertEquals(10, stats.getCount());
+        assertEquals(9, stats.getSucceeded());
+        assertEquals(1, stats.getFailed());
+        assertTrue(stats.getMaxPending() <= 8);
+    }
+
+    @Test
+    public void inputs_are_read_as_evaluations_end() throws Exception {
+        final AtomicInteger read = new AtomicInteger();
+        final Iterator<Bindings> inputs = inputs(20).iterator();
+        Iterator<Bindings> counting = new Iterator<Bindings>() {
+            @Override
+            public boolean hasNext() {
+                return inputs.hasNext();
+            }
+
+            @Override
+            public Bindings next() {
+                read.incrementAndGet();
+                return inputs.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final AtomicInteger completed = new AtomicInteger();
+        ShellFanOut.Stats stats = new ShellFanOut(scriptEngine).setParallelism(2).setQueueSize(1).setOrdered(false).run(
+                "echo $i", counting, new FanOutListener() {
+                    @Override
+                    public void completed(int index, Bindings bindings, CommandResult commandResult) {
+                        // at most parallelism + queue size evaluations are pending
+                        assertTrue(read.get() - completed.incrementAndGet() < 3);
+                    }
+
+                    @Override
+                    public void failed(int index, Bindings bindings, Throwable cause) {
+                        fail();
+                    }
+                });
+
+        assertEquals(20, stats.getSucceeded());
+        assertEquals(3, stats.getMaxPending());
+    }
+
+    @Test
+    public void results_held_for_a_slow_head_count_against_the_window() throws Exception {
+        final AtomicInteger read = new AtomicInteger();
+        final Iterator<Bindings> inputs = inputs(20).iterator();
+        Iterator<Bindings> counting = new Iterator<Bindings>() {
+            @Override
+            public boolean hasNext() {
+                return inputs.hasNext();
+            }
+
+            @Override
+            public Bindings next() {
+                read.incrementAndGet();
+                return inputs.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final AtomicInteger delivered = new AtomicInteger();
+        ShellFanOut.Stats stats = new ShellFanOut(scriptEngine).setParallelism(2).setQueueSize(1).run(
+                "[ $i != 0 ] || sleep 0.5; echo $i", counting, new FanOutListener() {
+                    @Override
+                    public void completed(int index, Bindings bindings, CommandResult commandResult) {
+                        assertTrue(read.get() - delivered.incrementAndGet() < 3);
+                    }
+
+                    @Override
+                    public void failed(int index, Bindings bindings, Throwable cause) {
+                        fail();
+                    }
+                });
+
+        assertEquals(20, stats.getSucceeded());
+        assertTrue(stats.getMaxPending() <= 3);
+    }
+
+    private static List<Bindings> inputs(int count) {
+        List<Bindings> inputs = new ArrayList<Bindings>();
+        for (int i = 0; i < count; i++) {
+            Bindings bindings = new SimpleBindings();
+            bindings.put("i", i);
+            inputs.add(bindings);
+        }
+        return inputs;
+    }
+
+    private static List<String> asStrings(int count) {
+        List<String> strings = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            strings.add(String.valueOf(i));
+        }
+        return strings;
+    }
+}
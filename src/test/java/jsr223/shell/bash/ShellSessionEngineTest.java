@@ -0,0 +1,115 @@
+package jsr223.shell.bash;
+
+import jsr223.shell.ShellSessionEngine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ShellSessionEngineTest {
+
+    private ShellSessionEngine scriptEngine;
+    private StringWriter scriptOutput;
+
+    @Before
+    public void runOnlyOnLinux() {
+        assumeTrue(System.getProperty("os.name").contains("Linux"));
+    }
+
+    @Before
+    public void setup() {
+        scriptEngine = new ShellSessionEngine();
+        scriptOutput = new StringWriter();
+        scriptEngine.getContext().setWriter(scriptOutput);
+        scriptEngine.getContext().setErrorWriter(new StringWriter());
+    }
+
+    @After
+    public void close() {
+        scriptEngine.close();
+    }
+
+    @Test
+    public void engine_is_found_by_name() {
+        ScriptEngineManager manager = new ScriptEngineManager();
+        assertTrue(manager.getEngineByName("bash-session") instanceof ShellSessionEngine);
+        assertTrue(scriptEngine.getFactory().getScriptEngine() instanceof ShellSessionEngine);
+    }
+
+    @Test
+    public void shell_state_is_kept_between_evaluations() throws Exception {
+        scriptEngine.eval("counter=1; greet() { echo \"hello $1\"; }; cd /tmp");
+        scriptEngine.eval("counter=$((counter + 1))");
+        scriptEngine.eval("echo $counter $(pwd); greet world");
+
+        assertEquals("2 /tmp\nhello world", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void bindings_are_exported_when_they_change() throws Exception {
+        scriptEngine.put("first", "1");
+        scriptEngine.put("second", "2");
+        scriptEngine.eval("second=changed");
+        scriptEngine.put("first", "one");
+        scriptEngine.getBindings(ScriptContext.ENGINE_SCOPE).remove("second");
+        scriptEngine.eval("echo $first ${second-unset}");
+
+        assertEquals("one unset", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void functions_are_invoked_with_arguments() throws Exception {
+        scriptEngine.eval("args() { printf '[%s]' \"$@\"; }; fails() { return 3; }");
+
+        assertEquals(0, scriptEngine.invokeFunction("args", "a b", "it's", null, 1));
+        assertEquals("[a b][it's][][1]", scriptOutput.toString().trim());
+        try {
+            scriptEngine.invokeFunction("fails");
+            fail();
+        } catch (ScriptException e) {
+            assertTrue(e.getMessage().contains("exit code 3"));
+        }
+    }
+
+    @Test(expected = NoSuchMethodException.class)
+    public void missing_function_is_reported() throws Exception {
+        scriptEngine.invokeFunction("no_such_function");
+    }
+
+    @Test
+    public void interface_is_implemented_by_functions() throws Exception {
+        scriptEngine.eval("greet() { echo \"hello $1\"; }");
+
+        assertNull(scriptEngine.getInterface(Runnable.class));
+        scriptEngine.eval("run() { echo ran; }");
+        scriptEngine.getInterface(Runnable.class).run();
+
+        assertEquals("ran", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void exit_ends_the_session() throws Exception {
+        try {
+            scriptEngine.eval("exit 1");
+            fail();
+        } catch (ScriptException e) {
+            assertFalse(scriptEngine.isAlive());
+        }
+        try {
+            scriptEngine.eval("true");
+            fail();
+        } catch (ScriptException e) {
+            assertTrue(e.getMessage().contains("session ended"));
+        }
+        scriptEngine.close();
+
+        assertEquals(0, scriptEngine.eval("true"));
+    }
+}
@@ -0,0 +1,86 @@
+package jsr223.shell.exec;
+
+import jsr223.shell.ShellEngine;
+import jsr223.shell.ShellEnvironment;
+import jsr223.shell.ShellHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ExecScriptEngineTest {
+
+    private ShellEngine scriptEngine;
+    private StringWriter scriptOutput;
+
+    @Before
+    public void runOnlyOnLinux() {
+        assumeTrue(System.getProperty("os.name").contains("Linux"));
+    }
+
+    @Before
+    public void setup() {
+        scriptEngine = new ShellEngine(new Exec());
+        scriptOutput = new StringWriter();
+        scriptEngine.getContext().setWriter(scriptOutput);
+        scriptEngine.getContext().setErrorWriter(new StringWriter());
+    }
+
+    @Test
+    public void engine_is_found_by_name() {
+        assertNotNull(new ScriptEngineManager().getEngineByName("exec"));
+    }
+
+    @Test
+    public void command_runs_without_a_shell() throws Exception {
+        Integer returnCode = (Integer) scriptEngine.eval("echo a; echo b > /dev/null $((1+1))");
+
+        assertEquals(Integer.valueOf(0), returnCode);
+        assertEquals("a; echo b > /dev/null $((1+1))", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void bindings_are_substituted_into_single_arguments() throws Exception {
+        scriptEngine.put("text", "two  words");
+        scriptEngine.put("aList", Arrays.asList("x", "y"));
+
+        scriptEngine.eval("printf [%s] $text ${aList_1}'$text' \"$text\\$\"");
+
+        assertEquals("[two  words][y$text][two  words$]", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void only_variables_of_the_process_are_substituted() throws Exception {
+        assumeTrue(System.getenv("HOME") != null);
+        scriptEngine.eval("printf [%s] \"$HOME\"");
+        assertEquals("[" + System.getenv("HOME") + "]", scriptOutput.toString().trim());
+
+        scriptOutput.getBuffer().setLength(0);
+        scriptEngine.put(ShellHandler.KEY_ENV, ShellEnvironment.EMPTY);
+        scriptEngine.eval("printf [%s] \"$HOME\"");
+        assertEquals("[]", scriptOutput.toString().trim());
+    }
+
+    @Test
+    public void tokenizer_handles_quotes_and_escapes() {
+        assertEquals(Arrays.asList("a b", "c\"d", "e f", "$", "g"),
+                Exec.split(" 'a b' \"c\\\"d\" e\\ f $ g ", Collections.<String, String>emptyMap()));
+    }
+
+    @Test(expected = ScriptException.class)
+    public void failing_command_throws() throws Exception {
+        scriptEngine.eval("false");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unterminated_quote_is_rejected() {
+        new Exec().createByCommand("echo 'a");
+    }
+}
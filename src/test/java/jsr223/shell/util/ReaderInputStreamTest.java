@@ -0,0 +1,27 @@
+package jsr223.shell.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ReaderInputStreamTest {
+
+    @Test
+    public void encodes_all_the_characters() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("é€𝄞").append(i);
+        }
+        String text = sb.toString();
+        for (String charsetName : new String[]{"UTF-8", "UTF-16", "ISO-8859-1"}) {
+            Charset charset = Charset.forName(charsetName);
+            byte[] bytes = IOUtils.toByteArray(new ReaderInputStream(new StringReader(text), charset));
+
+            assertArrayEquals(charsetName, text.getBytes(charset), bytes);
+        }
+    }
+}